@@ -3,6 +3,7 @@ package com.brownfields.github.hellostk3;
 import javacard.framework.JCSystem;
 import javacard.framework.UserException;
 import javacard.framework.Util;
+import javacard.security.RandomData;
 import uicc.toolkit.*;
 
 import static uicc.toolkit.ToolkitConstants.*;
@@ -10,7 +11,8 @@ import static uicc.toolkit.ToolkitConstants.*;
  * BIPManager class
  *
  * Handles Bearer Independent Protocol (BIP) operations such as opening channels,
- * sending HTTP POST requests, managing responses, and handling channel events.
+ * sending HTTP POST requests (TCP) or CoAP POST requests (UDP), managing responses,
+ * and handling channel events.
  */
 public class BIPManager {
 
@@ -21,13 +23,159 @@ public class BIPManager {
     private byte[] bcdBuffer; // Buffer for numeric conversions (e.g., port number)
 
     private DiagUtil diag;
+    private HttpResponseListener responseListener;
+    private ServerRequestListener serverListener;
+    private RandomData random;
 
-    // Index in appStateBuffer to store HTTP BIP channel identifier
-    private static final short httpBIPChannelIndex = 0;
+    // Open channels, with one response parser per HTTP channel slot
+    private ChannelPool channels;
+    private HttpResponseParser[] responseParsers;
+    // Report transports
+    public static final byte TRANSPORT_HTTP = 0;
+    public static final byte TRANSPORT_COAP = 1;
+
+    // Keep-alive mode: the HTTP channel is reused across posts and closed on idle timeout
+    private boolean keepAlive;
+    private short keepAliveIdleTimeout;
+    private byte idleTimerId;
+
+    // Activity tick when the idle timer was started
+    private short[] idleSince;
+
+    // Default idle timeout (seconds) before a kept-alive channel is closed
+    private static final short DEFAULT_IDLE_TIMEOUT = 30;
+
+    // Status-only mode: read just the status line, then close the channel
+    private boolean statusOnly;
+
+    // OPEN CHANNEL command qualifiers (ETSI TS 102 223 Clause 8.6)
+    private static final byte OPEN_IMMEDIATE_LINK = 0x01;
+    private static final byte OPEN_AUTOMATIC_RECONNECTION = 0x02;
+
+    // Link establishment: on demand (by the first SEND DATA) or immediate
+    private boolean onDemandLink;
+
+    // Bearer description TLV value, by default the default bearer for the transport
+    private static final byte[] DEFAULT_BEARER = {0x03};
+    private byte[] bearerDescription;
+
+    // Persistent HTTP request header, built once per endpoint. The Content-Type
+    // subtype is sent from a constant between the two parts of the template, and
+    // the Content-Length digits are patched into a fixed-width slot per request.
+    private byte[] headerTemplate;
+    private short headerTypeEnd;
+    private short headerLength;
+    private short contentLengthOffset;
+    private static final short HEADER_TEMPLATE_SIZE = 320;
+    private static final short CONTENT_LENGTH_DIGITS = 5;
+
+    // HTTP endpoint the template was built for
+    private byte[] httpPath;
+    private byte[] httpHost;
+    private byte[] httpAddr;
+    private short httpPort;
+
+    // Bytes needed to parse the status code ("HTTP/1.1 200")
+    private static final short STATUS_LINE_READ_SIZE = 12;
+
+    // Buffer size granted by the terminal for each channel identifier (1-7)
+    private short[] channelBufferSizes;
+
+    // Bytes left in the terminal Tx buffer of each channel identifier by SEND DATA (store)
+    private short[] channelStoredBytes;
+
+    // Index in appStateBuffer to store the channel identifier of the streamed request
+    private static final short streamChannelIndex = 0;
+
+    // Buffer size requested in OPEN CHANNEL
+    private static final short REQUESTED_BUFFER_SIZE = (short) 0x05DC;
+
+    // Largest channel data fitting in a RECEIVE DATA terminal response (255 bytes minus
+    // command details, device identities, result and channel data length TLVs)
+    private static final short MAX_RECEIVE_CHUNK = (short) 0xED;
+
+    // Index in appStateBuffer to store the number of queued transmission segments
+    private static final short txSegmentCountIndex = 1;
+
+    // Segments (buffer, offset, length) sent together as one transmission
+    private static final short MAX_TX_SEGMENTS = 6;
+    private Object[] txSegmentBuffers;
+    private short[] txSegmentOffsets;
+    private short[] txSegmentLengths;
+    private byte[] tlvHeaderBuffer;
+    private byte[] chunkSizeBuffer;
+
+    // SEND DATA command qualifiers
+    private static final byte SEND_DATA_STORE = 0x00;
+    private static final byte SEND_DATA_IMMEDIATELY = 0x01;
+
+    // Index in appStateBuffer to store the classification of the last failure
+    private static final short lastFailureIndex = 3;
+
+    // Failure classification, used to decide whether a report is retried
+    public static final byte FAILURE_NONE = 0;
+    public static final byte FAILURE_TEMPORARY = 1;
+    public static final byte FAILURE_PERMANENT = 2;
+
+    // Additional information on a BIP error (ETSI TS 102 223 Clause 8.12.11)
+    private static final byte BIP_NO_SPECIFIC_CAUSE = 0x00;
+    private static final byte BIP_NO_CHANNEL_AVAILABLE = 0x01;
+    private static final byte BIP_CHANNEL_CLOSED = 0x02;
+    private static final byte BIP_REMOTE_NOT_REACHABLE = 0x07;
+
+    // State of the pending confirmable CoAP exchange
+    private short[] coapState;
+    private static final short IDX_COAP_STATE = 0;
+    private static final short IDX_COAP_MESSAGE_ID = 1;
+    private static final short IDX_COAP_LENGTH = 2;
+    private static final short IDX_COAP_RETRANSMITS = 3;
+    private static final short IDX_COAP_TIMEOUT = 4;
+    private static final short IDX_COAP_CHANNEL = 5;
+
+    private static final short COAP_IDLE = 0;
+    private static final short COAP_AWAITING_ACK = 1;
+    private static final short COAP_AWAITING_RESPONSE = 2;
+
+    // CoAP transmission parameters (RFC 7252 Clause 4.8), in seconds
+    private static final short COAP_ACK_TIMEOUT = 2;
+    private static final short COAP_MAX_RETRANSMIT = 4;
+    private static final short COAP_RESPONSE_TIMEOUT = 30;
+
+    // Room kept in httpHeaderBuffer behind a CoAP request for the header of its response
+    private static final short COAP_RESPONSE_ROOM = 32;
+
+    // Last CoAP message ID, also used as token
+    private short coapMessageId;
 
     // Bearer types
     private static final byte udpTag = 0x01;
     private static final byte tcpTag = 0x02;
+    private static final byte tcpServerTag = 0x03;
+
+    // CLOSE CHANNEL qualifier for a UICC server channel: drop the client and listen again
+    private static final byte CLOSE_TO_LISTEN = 0x01;
+
+    // TCP state of a UICC server channel in the channel status (ETSI TS 102 223 Clause 8.56)
+    private static final short SERVER_STATE_MASK = (short) 0xC000;
+    private static final short SERVER_STATE_CLOSED = 0x0000;
+
+    // Bytes read from an inbound request, enough for the request line, and room for the
+    // JSON body of the response (a full report is below 160 bytes)
+    private static final short SERVER_READ_SIZE = 96;
+    private static final short SERVER_BODY_SIZE = 192;
+
+    // Request and response body of the UICC server, allocated when the server is opened
+    private byte[] serverBuffer;
+
+    // Responses of the UICC server
+    private static final byte[] getMethod = {'G', 'E', 'T', ' '};
+    private static final byte[] okStatusLine = {'H', 'T', 'T', 'P', '/', '1', '.', '1', ' ', '2', '0', '0', ' ', 'O', 'K'};
+    private static final byte[] notFoundStatusLine = {'H', 'T', 'T', 'P', '/', '1', '.', '1', ' ', '4', '0', '4', ' ', 'N', 'o', 't', ' ', 'F', 'o', 'u', 'n', 'd'};
+    private static final byte[] badMethodStatusLine = {'H', 'T', 'T', 'P', '/', '1', '.', '1', ' ', '4', '0', '5', ' ', 'M', 'e', 't', 'h', 'o', 'd', ' ', 'N', 'o', 't', ' ', 'A', 'l', 'l', 'o', 'w', 'e', 'd'};
+    private static final byte[] errorStatusLine = {'H', 'T', 'T', 'P', '/', '1', '.', '1', ' ', '5', '0', '0', ' ', 'I', 'n', 't', 'e', 'r', 'n', 'a', 'l', ' ', 'E', 'r', 'r', 'o', 'r'};
+    private static final byte[] serverTypeHeader = {'\r', '\n', 'C', 'o', 'n', 't', 'e', 'n', 't', '-', 'T', 'y', 'p', 'e', ':', ' ', 'a', 'p', 'p', 'l', 'i', 'c', 'a', 't', 'i', 'o', 'n', '/', 'j', 's', 'o', 'n'};
+    private static final byte[] serverLengthHeader = {'\r', '\n', 'C', 'o', 'n', 't', 'e', 'n', 't', '-', 'L', 'e', 'n', 'g', 't', 'h', ':', ' '};
+    private static final byte[] serverCloseHeader = {'\r', '\n', 'C', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n', ':', ' ', 'c', 'l', 'o', 's', 'e', '\r', '\n', '\r', '\n'};
 
     // Diagnostic error messages
     private static byte[] BIP_ERROR_GENERAL = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'B', 'I', 'P'};
@@ -35,6 +183,7 @@ public class BIPManager {
     private static byte[] BIP_ERROR_TOOLKIT_2 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'B', 'I', 'P', '_', 'T', '2'};
     private static byte[] BIP_ERROR_USER_1 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'B', 'I', 'P', '_', 'U', '1'};
     private static byte[] BIP_ERROR_USER_2 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'B', 'I', 'P', '_', 'U', '2'};
+    private static byte[] BIP_ERROR_COAP = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'C', 'O', 'A', 'P'};
 
     /**
      * Constructor
@@ -45,14 +194,143 @@ public class BIPManager {
     public BIPManager(DiagUtil diag, byte[] tmpBuffer) {
         appStateBuffer = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_RESET);
         httpHeaderBuffer = JCSystem.makeTransientByteArray((short) 320, JCSystem.CLEAR_ON_RESET);
+        headerTemplate = new byte[HEADER_TEMPLATE_SIZE];
         this.tmpBuffer = tmpBuffer;
         bcdBuffer = JCSystem.makeTransientByteArray((short) 10, JCSystem.CLEAR_ON_RESET);
+        channelBufferSizes = JCSystem.makeTransientShortArray((short) 8, JCSystem.CLEAR_ON_RESET);
+        channelStoredBytes = JCSystem.makeTransientShortArray((short) 8, JCSystem.CLEAR_ON_RESET);
+        chunkSizeBuffer = JCSystem.makeTransientByteArray((short) 6, JCSystem.CLEAR_ON_RESET);
+        txSegmentBuffers = JCSystem.makeTransientObjectArray(MAX_TX_SEGMENTS, JCSystem.CLEAR_ON_RESET);
+        txSegmentOffsets = JCSystem.makeTransientShortArray(MAX_TX_SEGMENTS, JCSystem.CLEAR_ON_RESET);
+        txSegmentLengths = JCSystem.makeTransientShortArray(MAX_TX_SEGMENTS, JCSystem.CLEAR_ON_RESET);
+        tlvHeaderBuffer = JCSystem.makeTransientByteArray((short) 3, JCSystem.CLEAR_ON_RESET);
+        coapState = JCSystem.makeTransientShortArray((short) 6, JCSystem.CLEAR_ON_RESET);
+        idleSince = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        bearerDescription = DEFAULT_BEARER;
         this.diag = diag;
 
+        channels = new ChannelPool();
+        responseParsers = new HttpResponseParser[ChannelPool.POOL_SIZE];
+        for (short i = 0; i < ChannelPool.POOL_SIZE; i++) {
+            responseParsers[i] = new HttpResponseParser();
+        }
+
+        // Randomized initial message ID, as recommended by RFC 7252
+        random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+        random.generateData(tmpBuffer, (short) 0, (short) 2);
+        coapMessageId = Util.getShort(tmpBuffer, (short) 0);
+
+        keepAlive = false;
+        statusOnly = false;
+        keepAliveIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+        idleTimerId = ToolkitRegistrySystem.getEntry().allocateTimer();
+    }
+
+    /**
+     * Enables or disables keep-alive mode.
+     * <p>
+     * In keep-alive mode the HTTP channel stays open after a response and is reused by
+     * the next post. It is closed when the idle timer expires or the link drops.
+     *
+     * @param enabled     True to keep the channel open between posts
+     * @param idleSeconds Idle timeout in seconds before the channel is closed
+     */
+    public void setKeepAlive(boolean enabled, short idleSeconds) {
+        keepAlive = enabled;
+        keepAliveIdleTimeout = idleSeconds;
+        if (httpPath != null) {
+            buildHeaderTemplate();
+        }
+    }
+
+    /**
+     * Sets the HTTP endpoint and builds the request header template for it.
+     *
+     * @param path API path
+     * @param host Host header, or null to use the server address
+     * @param addr Server address, used for the Host header if host is null
+     * @param port Server port
+     */
+    public void setHttpEndpoint(byte[] path, byte[] host, byte[] addr, short port) {
+        httpPath = path;
+        httpHost = host;
+        httpAddr = addr;
+        httpPort = port;
+        buildHeaderTemplate();
+    }
+
+    /**
+     * Selects on-demand or immediate link establishment for OPEN CHANNEL.
+     * <p>
+     * With on-demand establishment the terminal only activates the bearer when the
+     * first SEND DATA is issued, so OPEN CHANNEL returns without waiting for it.
+     *
+     * @param onDemand True for on-demand link establishment
+     */
+    public void setOnDemandLink(boolean onDemand) {
+        onDemandLink = onDemand;
+    }
+
+    /**
+     * Sets the bearer description sent in OPEN CHANNEL.
+     *
+     * @param description Bearer description TLV value (bearer type and parameters),
+     *                    or null for the default bearer
+     */
+    public void setBearerDescription(byte[] description) {
+        bearerDescription = description == null ? DEFAULT_BEARER : description;
+    }
+
+    /**
+     * Enables or disables status-only mode.
+     * <p>
+     * In status-only mode only the bytes needed to parse the status code are received;
+     * the channel is then closed without draining the rest of the response. As the
+     * unread data is discarded with the channel, this also closes kept-alive channels.
+     *
+     * @param enabled True to discard response bodies
+     */
+    public void setStatusOnly(boolean enabled) {
+        statusOnly = enabled;
+    }
+
+    /**
+     * Sets the listener notified of HTTP response status, body, completion and failure.
+     *
+     * @param listener Response listener
+     */
+    public void setResponseListener(HttpResponseListener listener) {
+        responseListener = listener;
+        for (short i = 0; i < ChannelPool.POOL_SIZE; i++) {
+            responseParsers[i].setListener(listener);
+        }
+    }
+
+    /**
+     * Returns true if the terminal supports OPEN CHANNEL, as declared in its profile.
+     */
+    public boolean isAvailable() {
+        try {
+            return TerminalProfile.check(TerminalProfile.IDX_PROACTIVE_UICC_OPEN_CHANNEL);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * Sets the listener answering requests received in UICC server mode.
+     *
+     * @param listener Server request listener
+     */
+    public void setServerListener(ServerRequestListener listener) {
+        serverListener = listener;
     }
 
     /**
      * Opens a BIP channel to the specified address and port.
+     * <p>
+     * The buffer size granted by the terminal is stored per channel and used
+     * to size SEND DATA and RECEIVE DATA chunks.
      *
      * @param udp True if UDP is used, false for TCP
      * @param addr Destination IP address
@@ -62,24 +340,82 @@ public class BIPManager {
     private byte openChannel(boolean udp, byte[] addr, short port) throws UserException, ToolkitException {
 
         ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
-        ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
 
-        ph.init(ToolkitConstants.PRO_CMD_OPEN_CHANNEL, (byte) 0x03, ToolkitConstants.DEV_ID_TERMINAL);
-        ph.appendTLV((byte) (ToolkitConstants.TAG_BEARER_DESCRIPTION | ToolkitConstants.TAG_SET_CR), (byte) 0x03);
-        ph.appendTLV((byte) (ToolkitConstants.TAG_BUFFER_SIZE | ToolkitConstants.TAG_SET_CR), (short) 0x05DC);
+        byte qualifier = onDemandLink ? OPEN_AUTOMATIC_RECONNECTION : (byte) (OPEN_IMMEDIATE_LINK | OPEN_AUTOMATIC_RECONNECTION);
+        ph.init(ToolkitConstants.PRO_CMD_OPEN_CHANNEL, qualifier, ToolkitConstants.DEV_ID_TERMINAL);
+        ph.appendTLV((byte) (ToolkitConstants.TAG_BEARER_DESCRIPTION | ToolkitConstants.TAG_SET_CR),
+                bearerDescription, (short) 0, (short) bearerDescription.length);
+        ph.appendTLV((byte) (ToolkitConstants.TAG_BUFFER_SIZE | ToolkitConstants.TAG_SET_CR), REQUESTED_BUFFER_SIZE);
         ph.appendTLV((byte) (ToolkitConstants.TAG_UICC_TERMINAL_TRANSPORT_LEVEL | ToolkitConstants.TAG_SET_CR), udp ? udpTag : tcpTag, port);
         ph.appendTLV((byte) (ToolkitConstants.TAG_OTHER_DATA_DESTINATION_ADDRESS | ToolkitConstants.TAG_SET_CR), (byte) 0x21, addr, (short) 0, (short) 4);
 
 
-        byte openResult = ph.send();
+        return registerChannel(ph.send());
+
+    }
+
+    /**
+     * Reads the channel identifier and granted buffer size from the terminal
+     * response to OPEN CHANNEL.
+     *
+     * @param openResult General result of the terminal response
+     * @return Channel ID
+     */
+    private byte registerChannel(byte openResult) throws UserException {
+        ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
         byte channelId = 0;
-        if (openResult == RES_CMD_PERF) {
+        if (openResult == RES_CMD_PERF || openResult == RES_CMD_PERF_WITH_MODIFICATION) {
             channelId = rh.getChannelIdentifier();
+            short bufferSize = REQUESTED_BUFFER_SIZE;
+            if (rh.findTLV(TAG_BUFFER_SIZE, (byte) 0x01) != TLV_NOT_FOUND) {
+                bufferSize = rh.getValueShort((short) 0);
+            }
+            channelBufferSizes[(short) (channelId & 0x07)] = bufferSize;
+            channelStoredBytes[(short) (channelId & 0x07)] = 0;
         } else {
+            recordFailure(openResult);
             UserException.throwIt((short) openResult);
         }
         return channelId;
+    }
 
+    /**
+     * Opens a TCP channel with the UICC in server mode (ETSI TS 102 223 Clause 6.4.27.5),
+     * so that a collector can connect to the card and query it. The channel stays in the
+     * pool until the terminal closes it; it is not closed by the idle timer.
+     * <p>
+     * Server mode is refused on a terminal that supports a single channel, which is
+     * needed by the reports.
+     *
+     * @param port Listening port
+     * @return True if the server channel is open
+     */
+    public boolean openServer(short port) {
+        if (channels.findOwner(ChannelPool.OWNER_SERVER) >= 0) {
+            return true;
+        }
+        if (channels.getCapacity() < 2 || channels.isFull()) {
+            return false;
+        }
+        if (serverBuffer == null) {
+            serverBuffer = JCSystem.makeTransientByteArray((short) (SERVER_READ_SIZE + SERVER_BODY_SIZE),
+                    JCSystem.CLEAR_ON_RESET);
+        }
+        try {
+            ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+            ph.init(PRO_CMD_OPEN_CHANNEL, (byte) 0x00, DEV_ID_TERMINAL);
+            ph.appendTLV((byte) (TAG_BUFFER_SIZE | TAG_SET_CR), REQUESTED_BUFFER_SIZE);
+            ph.appendTLV((byte) (TAG_UICC_TERMINAL_TRANSPORT_LEVEL | TAG_SET_CR), tcpServerTag, port);
+            channels.add(registerChannel(ph.send()), ChannelPool.OWNER_SERVER);
+            return true;
+        } catch (ToolkitException e) {
+            diag.error(BIP_ERROR_TOOLKIT_2, e.getReason());
+        } catch (UserException e) {
+            diag.error(BIP_ERROR_USER_2, e.getReason());
+        } catch (Exception e) {
+            DiagUtil.text(BIP_ERROR_GENERAL);
+        }
+        return false;
     }
 
 
@@ -90,6 +426,13 @@ public class BIPManager {
      */
     private void closeChannel(byte bipChannelId) {
         if (bipChannelId != 0) {
+            short slot = channels.find(bipChannelId);
+            if (slot >= 0) {
+                if (channels.getOwner(slot) == ChannelPool.OWNER_COAP) {
+                    coapState[IDX_COAP_STATE] = COAP_IDLE;
+                }
+                channels.remove(slot);
+            }
             ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
             ph.initCloseChannel(bipChannelId);
             ph.send();
@@ -97,137 +440,363 @@ public class BIPManager {
     }
 
     /**
-     * Sends data over an open BIP channel.
+     * Opens a channel and adds it to the pool.
+     * <p>
+     * If the pool already holds as many channels as the terminal supports, the
+     * failure is recorded as temporary, so the report is retried once a channel
+     * has been released.
+     *
+     * @param owner Owner of the channel (ChannelPool.OWNER_*)
+     * @return Slot of the channel
+     */
+    private short openPooledChannel(byte owner, byte[] addr, short port) throws UserException, ToolkitException {
+        if (channels.isFull()) {
+            appStateBuffer[lastFailureIndex] = FAILURE_TEMPORARY;
+            UserException.throwIt((short) 0x7004);
+        }
+        return channels.add(openChannel(owner == ChannelPool.OWNER_COAP, addr, port), owner);
+    }
+
+    /**
+     * Starts the idle timer, after which the channels without activity are closed.
+     * The timer is left alone while it drives a CoAP exchange.
+     *
+     * @param seconds Idle timeout in seconds
+     */
+    private void startIdleTimer(short seconds) {
+        if (coapState[IDX_COAP_STATE] == COAP_IDLE) {
+            idleSince[0] = channels.getTick();
+            TimerUtil.start(idleTimerId, seconds);
+        }
+    }
+
+    /**
+     * Closes the channels without activity since the idle timer was started. Channels
+     * waiting for a response are only closed in keep-alive mode, otherwise they are
+     * closed by the response. The timer is restarted for the remaining idle channels.
+     */
+    private void closeIdleChannels() {
+        boolean remaining = false;
+        for (short slot = 0; slot < ChannelPool.POOL_SIZE; slot++) {
+            byte state = channels.getState(slot);
+            if (state == ChannelPool.STATE_FREE || (state == ChannelPool.STATE_BUSY && !keepAlive)
+                    || channels.getOwner(slot) == ChannelPool.OWNER_SERVER) {
+                continue;
+            }
+            if (channels.isIdleSince(slot, idleSince[0])) {
+                boolean failed = isAwaitingStatus(slot);
+                closeChannel(channels.getChannelId(slot));
+                if (failed) {
+                    notifyFailure();
+                }
+            } else {
+                remaining = true;
+            }
+        }
+        if (remaining) {
+            startIdleTimer(keepAliveIdleTimeout);
+        }
+    }
+
+    /**
+     * Returns the buffer size granted for a channel.
      *
      * @param bipChannelId Channel identifier
+     * @return Granted buffer size, or the requested size if unknown
+     */
+    private short getBufferSize(byte bipChannelId) {
+        short size = channelBufferSizes[(short) (bipChannelId & 0x07)];
+        return size > 0 ? size : REQUESTED_BUFFER_SIZE;
+    }
+
+    /**
+     * Clears the list of segments queued for the next transmission.
+     */
+    private void clearSegments() {
+        appStateBuffer[txSegmentCountIndex] = 0;
+    }
+
+    /**
+     * Queues a buffer region as the next segment of the transmission.
+     *
      * @param buffer Data to send
+     * @param offset Offset of the data
      * @param length Length of the data
+     */
+    private void addSegment(byte[] buffer, short offset, short length) {
+        short index = appStateBuffer[txSegmentCountIndex];
+        txSegmentBuffers[index] = buffer;
+        txSegmentOffsets[index] = offset;
+        txSegmentLengths[index] = length;
+        appStateBuffer[txSegmentCountIndex] = (byte) (index + 1);
+    }
+
+    /**
+     * Sends the queued segments over an open BIP channel as one continuous stream.
+     * <p>
+     * Chunks may span segment boundaries, so a header and body are packed together.
+     * Every chunk is sent with SEND DATA qualifier 0x00 (store in Tx buffer) except
+     * the last one, which uses 0x01 (send immediately), so the terminal emits the
+     * whole transmission as a single burst. If the stored data would exceed the
+     * granted channel buffer, that chunk is sent immediately instead.
+     * Each SEND DATA carries the largest chunk that fits both the granted channel
+     * buffer and the remaining capacity of the proactive command. Data left stored by
+     * a call without flush is counted against the channel buffer by the next call.
+     *
+     * @param bipChannelId Channel identifier
+     * @param flush True to send the last chunk immediately, false to leave it stored
      * @return Result code
      */
-    private byte sendData(byte bipChannelId, byte[] buffer, short length) throws ToolkitException, UserException {
+    private byte sendSegments(byte bipChannelId, boolean flush) throws ToolkitException, UserException {
         ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        byte deviceId = (byte) (DEV_ID_CHANNEL_BASE + bipChannelId);
+
+        short bufferSize = getBufferSize(bipChannelId);
+        short segmentCount = appStateBuffer[txSegmentCountIndex];
+        short total = 0;
+        for (short i = 0; i < segmentCount; i++) {
+            total += txSegmentLengths[i];
+        }
+
+        // Room left in the command once the channel data tag and a two-byte length are added
+        ph.init(PRO_CMD_SEND_DATA, SEND_DATA_STORE, deviceId);
+        short commandRoom = (short) (ph.getCapacity() - ph.getLength() - 3);
 
-        short chunkSize = (short) 0xA0;
         byte result = RES_CMD_PERF;
         short position = 0;
+        short stored = channelStoredBytes[(short) (bipChannelId & 0x07)];
+        short segment = 0;
+        short segmentPosition = 0;
+
+        while (position < total) {
+            short chunkSize = (short) (total - position);
+            if (chunkSize > commandRoom) {
+                chunkSize = commandRoom;
+            }
+            if (chunkSize > (short) (bufferSize - stored)) {
+                chunkSize = (short) (bufferSize - stored);
+            }
 
-        while (position < length) {
-            ph.init(ToolkitConstants.PRO_CMD_SEND_DATA, (byte) 0x01, (byte) (DEV_ID_CHANNEL_BASE + bipChannelId));
+            boolean immediate = (short) (stored + chunkSize) == bufferSize
+                    || (flush && (short) (position + chunkSize) == total);
+            ph.init(PRO_CMD_SEND_DATA, immediate ? SEND_DATA_IMMEDIATELY : SEND_DATA_STORE, deviceId);
 
-            short remain = (short) (length - position);
-            short append;
-            if (remain > chunkSize) {
-                ph.appendTLV(TAG_CHANNEL_DATA, buffer, position, (short) chunkSize);
-                append = chunkSize;
-            } else {
-                ph.appendTLV(TAG_CHANNEL_DATA, buffer, position, remain);
-                append = remain;
+            // Channel data TLV header, then the data gathered from the segments
+            short headerLength = 0;
+            tlvHeaderBuffer[headerLength++] = TAG_CHANNEL_DATA;
+            if (chunkSize > (short) 0x7F) {
+                tlvHeaderBuffer[headerLength++] = (byte) 0x81;
+            }
+            tlvHeaderBuffer[headerLength++] = (byte) chunkSize;
+            ph.appendArray(tlvHeaderBuffer, (short) 0, headerLength);
+
+            short pending = chunkSize;
+            while (pending > 0) {
+                short available = (short) (txSegmentLengths[segment] - segmentPosition);
+                short part = available < pending ? available : pending;
+                ph.appendArray((byte[]) txSegmentBuffers[segment],
+                        (short) (txSegmentOffsets[segment] + segmentPosition), part);
+                pending -= part;
+                segmentPosition += part;
+                if (segmentPosition == txSegmentLengths[segment]) {
+                    segment++;
+                    segmentPosition = 0;
+                }
             }
+
             result = ph.send();
             if (result == RES_CMD_PERF) {
-                position += append;
+                position += chunkSize;
+                stored = immediate ? 0 : (short) (stored + chunkSize);
             } else {
+                recordFailure(result);
                 closeChannel(bipChannelId);
                 UserException.throwIt((short) 0x7003);
             }
         }
 
+        channelStoredBytes[(short) (bipChannelId & 0x07)] = stored;
         return result;
     }
 
+    /**
+     * Returns the classification of the last failure (FAILURE_*).
+     * Reset at the start of every request.
+     */
+    public byte getLastFailure() {
+        return appStateBuffer[lastFailureIndex];
+    }
+
+    /**
+     * Classifies a failed terminal response as temporary or permanent.
+     * <p>
+     * The terminal or network being currently unable to process the command, the
+     * user not accepting it, and BIP errors caused by a busy bearer, a closed channel
+     * or an unreachable server are temporary. Commands the terminal does not support
+     * or understand, and any other BIP error, are permanent.
+     *
+     * @param result General result of the terminal response
+     */
+    private void recordFailure(byte result) {
+        ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
+        byte additionalInfo = BIP_NO_SPECIFIC_CAUSE;
+        if (rh.getAdditionalInformationLength() > 0) {
+            rh.copyAdditionalInformation(tmpBuffer, (short) 0, (short) 1);
+            additionalInfo = tmpBuffer[0];
+        }
+
+        byte failure = FAILURE_PERMANENT;
+        switch (result) {
+            case RES_TEMP_PB_TERMINAL_UNABLE_PROC:
+            case RES_TEMP_PB_SESSION_TERM_USER:
+            case RES_TEMP_PB_USER_REJECT_CALL_REQ:
+            case RES_TEMP_PB_USER_CLEAR_CALL:
+            case RES_TEMP_PB_INTERACT_CC_BY_NAA:
+            case RES_ERROR_ACCESS_TECH_ERROR:
+                failure = FAILURE_TEMPORARY;
+                break;
+            case RES_ERROR_BEARER_INDEPENDENT_PROTOCOL_ERROR:
+                if (additionalInfo == BIP_NO_SPECIFIC_CAUSE || additionalInfo == BIP_NO_CHANNEL_AVAILABLE
+                        || additionalInfo == BIP_CHANNEL_CLOSED || additionalInfo == BIP_REMOTE_NOT_REACHABLE) {
+                    failure = FAILURE_TEMPORARY;
+                }
+                break;
+            default:
+                break;
+        }
+        appStateBuffer[lastFailureIndex] = failure;
+    }
+
     // Static HTTP header components
     private static final byte[] postHeader = {'P', 'O', 'S', 'T', ' '};
     private static final byte[] httpVersionHeader = {' ', 'H', 'T', 'T', 'P', '/', '1', '.', '1'};
     private static final byte[] hostHeader = {'H', 'o', 's', 't', ':', ' '};
     private static final byte[] connectionHeader = {'C', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n', ':', ' ', 'c', 'l', 'o', 's', 'e'};
-    private static final byte[] contentTypeHeader = {'C', 'o', 'n', 't', 'e', 'n', 't', '-', 'T', 'y', 'p', 'e', ':', ' ', 'a', 'p', 'p', 'l', 'i', 'c', 'a', 't', 'i', 'o', 'n', '/', 'j', 's', 'o', 'n'};
+    private static final byte[] keepAliveConnectionHeader = {'C', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n', ':', ' ', 'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e'};
+    private static final byte[] contentTypeHeader = {'C', 'o', 'n', 't', 'e', 'n', 't', '-', 'T', 'y', 'p', 'e', ':', ' ', 'a', 'p', 'p', 'l', 'i', 'c', 'a', 't', 'i', 'o', 'n', '/'};
+    private static final byte[] jsonSubtype = {'j', 's', 'o', 'n'};
+    private static final byte[] cborSubtype = {'c', 'b', 'o', 'r'};
+    private static final byte[] ndjsonSubtype = {'x', '-', 'n', 'd', 'j', 's', 'o', 'n'};
+    private static final byte[] chunkedEncodingHeader = {'\r', '\n', 'T', 'r', 'a', 'n', 's', 'f', 'e', 'r', '-', 'E', 'n', 'c', 'o', 'd', 'i', 'n', 'g', ':', ' ', 'c', 'h', 'u', 'n', 'k', 'e', 'd'};
+    private static final byte[] lastChunk = {'0', '\r', '\n', '\r', '\n'};
     private static final byte[] contentLengthHeaderPrefix = {'C', 'o', 'n', 't', 'e', 'n', 't', '-', 'L', 'e', 'n', 'g', 't', 'h', ':', ' '};
     private static final byte[] userAgentHeader = {'U', 's', 'e', 'r', '-', 'A', 'g', 'e', 'n', 't', ':', ' ', 'A', 'p', 'p', 'l', 'e', 't', '/', '0', '.', '9'};
     private static final byte[] newLineHeader = {'\r', '\n'};
 
     /**
-     * Creates the HTTP POST header.
-     *
-     * @param method HTTP method (POST)
-     * @param addr Destination address
-     * @param host Host header
-     * @param port Port number
-     * @param path API path
-     * @param pathLength Length of API path
-     * @param bodyLength Length of the body
-     * @return Total header length
+     * Builds the persistent HTTP POST header template for the configured endpoint.
+     * <p>
+     * The header is assembled in httpHeaderBuffer and written to the template in one
+     * copy. The template length is cleared while it is rewritten, so a reset during
+     * the build makes the next request rebuild it.
+     * Content-Length is followed by a slot of CONTENT_LENGTH_DIGITS spaces; the
+     * digits are right-aligned into it by patchContentLength(), the leading spaces
+     * being optional whitespace for HTTP.
      */
-    private short createHttpHeader(byte[] method, byte[] addr, byte[] host, short port,
-                                   byte[] path, short pathLength, short bodyLength
-    ) {
+    private void buildHeaderTemplate() {
 
         short sendBufferOffset = 0;
-        sendBufferOffset = Util.arrayCopy(method, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) method.length);
-        sendBufferOffset = Util.arrayCopy(path, (short) 0, httpHeaderBuffer, sendBufferOffset, pathLength);
-        sendBufferOffset = Util.arrayCopy(httpVersionHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) httpVersionHeader.length);
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
-
-        sendBufferOffset = Util.arrayCopy(hostHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) hostHeader.length);
-        if (host == null) {
-            for (short i = 0; i < (short) addr.length; i++) {
-                sendBufferOffset = ByteUtil.numToCharArray((short) (addr[i] & (short) 0xFF), httpHeaderBuffer, sendBufferOffset);
+        sendBufferOffset = Util.arrayCopyNonAtomic(postHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) postHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(httpPath, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) httpPath.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(httpVersionHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) httpVersionHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+
+        sendBufferOffset = Util.arrayCopyNonAtomic(hostHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) hostHeader.length);
+        if (httpHost == null) {
+            for (short i = 0; i < (short) httpAddr.length; i++) {
+                sendBufferOffset = ByteUtil.numToCharArray((short) (httpAddr[i] & (short) 0xFF), httpHeaderBuffer, sendBufferOffset);
                 httpHeaderBuffer[sendBufferOffset++] = '.';
             }
             sendBufferOffset--;
         } else {
-            sendBufferOffset = Util.arrayCopy(host, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) host.length);
+            sendBufferOffset = Util.arrayCopyNonAtomic(httpHost, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) httpHost.length);
         }
 
-        if (port != 80) {
+        if (httpPort != 80) {
             httpHeaderBuffer[sendBufferOffset++] = ':';
 
             bcdBuffer[0] = (byte) 0;
-            Util.setShort(bcdBuffer, (short) 1, port);
+            Util.setShort(bcdBuffer, (short) 1, httpPort);
             short bcdBytes = (short) 0x0;
             sendBufferOffset = ByteUtil.bcdToCharArray(bcdBuffer, bcdBytes, httpHeaderBuffer, sendBufferOffset);
         }
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        sendBufferOffset = Util.arrayCopy(connectionHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) connectionHeader.length);
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+        if (keepAlive) {
+            sendBufferOffset = Util.arrayCopyNonAtomic(keepAliveConnectionHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) keepAliveConnectionHeader.length);
+        } else {
+            sendBufferOffset = Util.arrayCopyNonAtomic(connectionHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) connectionHeader.length);
+        }
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        sendBufferOffset = Util.arrayCopy(contentTypeHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) contentTypeHeader.length);
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+        // The Content-Type subtype is inserted here when sending
+        sendBufferOffset = Util.arrayCopyNonAtomic(contentTypeHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) contentTypeHeader.length);
+        short typeEnd = sendBufferOffset;
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        if (bodyLength > 0) {
-            sendBufferOffset = Util.arrayCopy(contentLengthHeaderPrefix, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) contentLengthHeaderPrefix.length);
-            sendBufferOffset = ByteUtil.numToCharArray(bodyLength, httpHeaderBuffer, sendBufferOffset);
-            sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
-        }
+        sendBufferOffset = Util.arrayCopyNonAtomic(contentLengthHeaderPrefix, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) contentLengthHeaderPrefix.length);
+        short lengthOffset = sendBufferOffset;
+        sendBufferOffset = Util.arrayFillNonAtomic(httpHeaderBuffer, sendBufferOffset, CONTENT_LENGTH_DIGITS, (byte) ' ');
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        sendBufferOffset = Util.arrayCopy(userAgentHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) userAgentHeader.length);
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(userAgentHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) userAgentHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        sendBufferOffset = Util.arrayCopy(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
+        sendBufferOffset = Util.arrayCopyNonAtomic(newLineHeader, (short) 0, httpHeaderBuffer, sendBufferOffset, (short) newLineHeader.length);
 
-        return sendBufferOffset;
+        headerLength = 0;
+        Util.arrayCopyNonAtomic(httpHeaderBuffer, (short) 0, headerTemplate, (short) 0, sendBufferOffset);
+        headerTypeEnd = typeEnd;
+        contentLengthOffset = lengthOffset;
+        headerLength = sendBufferOffset;
+    }
 
+    /**
+     * Writes the body length, right-aligned, into the Content-Length slot of the template.
+     * The template is only written if the length differs from the previous request.
+     *
+     * @param bodyLength Length of the body
+     */
+    private void patchContentLength(short bodyLength) {
+        short digitsEnd = ByteUtil.numToCharArray(bodyLength, tmpBuffer, CONTENT_LENGTH_DIGITS);
+        if (digitsEnd == CONTENT_LENGTH_DIGITS) {
+            tmpBuffer[digitsEnd++] = '0';
+        }
+        short start = (short) (digitsEnd - CONTENT_LENGTH_DIGITS);
+        Util.arrayFillNonAtomic(tmpBuffer, start, (short) (CONTENT_LENGTH_DIGITS - start), (byte) ' ');
+        if (Util.arrayCompare(tmpBuffer, start, headerTemplate, contentLengthOffset, CONTENT_LENGTH_DIGITS) != 0) {
+            Util.arrayCopyNonAtomic(tmpBuffer, start, headerTemplate, contentLengthOffset, CONTENT_LENGTH_DIGITS);
+        }
     }
 
     /**
      * Processes the HTTP response data.
+     * <p>
+     * Each RECEIVE DATA chunk is read into httpHeaderBuffer, which is free once the
+     * request has been sent, and fed to the incremental response parser. Reading
+     * stops when the available data is drained or the response is complete, or in
+     * status-only mode as soon as the status code is known.
      *
      * @param channelId Channel identifier
-     * @param length Length of the response data
-     * @param dstBuffer Buffer to store the response
-     * @param dstOffset Offset in destination buffer
-     * @param dstBufferSize Destination buffer size
+     * @param responseParser Response parser of the channel
+     * @param length Length of the response data available in the terminal
      */
-    private void processHTTPResponse(byte channelId, short length, byte[] dstBuffer, short dstOffset, short dstBufferSize) {
-        short copied;
+    private void processHTTPResponse(byte channelId, HttpResponseParser responseParser, short length) {
+        short received;
         short readLength;
-        final short MAX_READ_SIZE = (short) 0xA0; // 0xA0バイトずつ受信する。
+        short maxReadSize = getBufferSize(channelId);
+        if (maxReadSize > MAX_RECEIVE_CHUNK) {
+            maxReadSize = MAX_RECEIVE_CHUNK;
+        }
+        if (statusOnly) {
+            maxReadSize = STATUS_LINE_READ_SIZE;
+        }
         ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
         ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
 
-        while (length > 0) {
-            if (length > MAX_READ_SIZE) {
-                readLength = MAX_READ_SIZE;
+        while (length > 0 && !responseParser.isComplete() && !(statusOnly && responseParser.hasStatus())) {
+            if (length > maxReadSize) {
+                readLength = maxReadSize;
             } else {
                 readLength = (short) (length & 0xff);
             }
@@ -239,32 +808,35 @@ public class BIPManager {
             if (res != RES_CMD_PERF) {
                 break;
             } else {
-                if ((short) (dstOffset + readLength) <= dstBufferSize) {
-                    dstOffset = rh.findAndCopyValue(TAG_CHANNEL_DATA, dstBuffer, dstOffset);
-                } else {
-                }
-                copied = rh.findAndCopyValue(TAG_CHANNEL_DATA_LENGTH, tmpBuffer, (short) 0);
+                received = rh.findAndCopyValue(TAG_CHANNEL_DATA, httpHeaderBuffer, (short) 0);
+                rh.findAndCopyValue(TAG_CHANNEL_DATA_LENGTH, tmpBuffer, (short) 0);
                 length = (short) (tmpBuffer[0] & 0xff);
+
+                // The listener may issue proactive commands, so the response handler is read first
+                responseParser.consume(httpHeaderBuffer, (short) 0, received);
             }
         }
     }
 
     /**
      * Sends an HTTP POST request over BIP.
+     * <p>
+     * The header is sent straight from the persistent template set up by
+     * setHttpEndpoint(), with only the Content-Length digits patched.
+     *
+     * @return True if the request has been sent
      */
-    public void sendHTTPPost(byte[] httpBodyBuffer, short contentLength,
-                             byte[] serverAddr, short serverPort,
-                             byte[] apiPath, byte[] hostName) throws UserException, ToolkitException {
+    public boolean sendHTTPPost(byte[] httpBodyBuffer, short contentLength, short contentFormat,
+                             byte[] serverAddr, short serverPort) {
 
 
+        appStateBuffer[lastFailureIndex] = FAILURE_NONE;
         try {
-            short headerLength = createHttpHeader(postHeader, serverAddr, hostName, serverPort, apiPath, (short) apiPath.length, contentLength);
-            byte bipChannelId = openChannel(false, serverAddr, serverPort);
-            appStateBuffer[httpBIPChannelIndex] = bipChannelId;
-            if (bipChannelId > 0) {
-                sendData(bipChannelId, httpHeaderBuffer, headerLength);
-                sendData(bipChannelId, httpBodyBuffer, contentLength);
-            }
+            clearSegments();
+            addHeaderSegments(contentFormat, contentLength, false);
+            addSegment(httpBodyBuffer, (short) 0, contentLength);
+            sendHttpRequest(serverAddr, serverPort, true);
+            return true;
         } catch (ToolkitException e) {
             if (e.getReason() >= 0x7000) {
                 diag.error(BIP_ERROR_TOOLKIT_1, e.getReason());
@@ -282,21 +854,595 @@ public class BIPManager {
 
         }
 
+        return false;
+    }
+
+    /**
+     * Starts a streamed HTTP POST request using chunked transfer encoding, for bodies
+     * that are produced piece by piece and do not fit in a buffer.
+     * <p>
+     * The body is then sent with addStreamData() and sendStreamChunk(), and the request
+     * is ended with endHTTPStream(). Data is left in the terminal Tx buffer and only sent
+     * when the channel buffer is full or the request ends. If any call fails, the
+     * channel is closed and the request is abandoned.
+     *
+     * @param contentFormat Body format (CoapUtil.FORMAT_*)
+     * @return True if the request has been started
+     */
+    public boolean beginHTTPStream(short contentFormat, byte[] serverAddr, short serverPort) {
+        appStateBuffer[lastFailureIndex] = FAILURE_NONE;
+        appStateBuffer[streamChannelIndex] = 0;
+        try {
+            clearSegments();
+            addHeaderSegments(contentFormat, (short) 0, true);
+            short slot = sendHttpRequest(serverAddr, serverPort, false);
+            appStateBuffer[streamChannelIndex] = channels.getChannelId(slot);
+            clearSegments();
+            return true;
+        } catch (Exception e) {
+            reportStreamError(e);
+        }
+        return false;
+    }
+
+    /**
+     * Adds a fragment to the next chunk of the streamed request. The fragment is
+     * read when the chunk is sent, and a chunk holds up to MAX_TX_SEGMENTS - 2 fragments:
+     * once it is full, the pending fragments are sent as a chunk of their own first.
+     *
+     * @return False if the request failed and was abandoned
+     */
+    public boolean addStreamData(byte[] buffer, short offset, short length) {
+        if (length <= 0) {
+            return true;
+        }
+        if (appStateBuffer[txSegmentCountIndex] >= (short) (MAX_TX_SEGMENTS - 2) && !sendStreamChunk()) {
+            return false;
+        }
+        addSegment(buffer, offset, length);
+        return true;
+    }
+
+    /**
+     * Sends the fragments added since the last chunk as one chunk of the streamed request.
+     *
+     * @return False if the request failed and was abandoned
+     */
+    public boolean sendStreamChunk() {
+        short total = 0;
+        short count = appStateBuffer[txSegmentCountIndex];
+        for (short i = 0; i < count; i++) {
+            total += txSegmentLengths[i];
+        }
+        if (total == 0) {
+            return appStateBuffer[streamChannelIndex] != 0;
+        }
+
+        // Chunk size line first, then the data and the closing CRLF
+        for (short i = count; i > 0; i--) {
+            txSegmentBuffers[i] = txSegmentBuffers[(short) (i - 1)];
+            txSegmentOffsets[i] = txSegmentOffsets[(short) (i - 1)];
+            txSegmentLengths[i] = txSegmentLengths[(short) (i - 1)];
+        }
+        Util.setShort(tmpBuffer, (short) 0, total);
+        short sizeLength = ByteUtil.bytesToHex(tmpBuffer, (short) 0, (short) 2, chunkSizeBuffer, (short) 0);
+        chunkSizeBuffer[sizeLength++] = '\r';
+        chunkSizeBuffer[sizeLength++] = '\n';
+        txSegmentBuffers[0] = chunkSizeBuffer;
+        txSegmentOffsets[0] = 0;
+        txSegmentLengths[0] = sizeLength;
+        appStateBuffer[txSegmentCountIndex] = (byte) (count + 1);
+        addSegment(newLineHeader, (short) 0, (short) newLineHeader.length);
+
+        return sendStream(false);
+    }
+
+    /**
+     * Ends the streamed request with the last chunk and waits for the response.
+     *
+     * @return True if the request has been sent
+     */
+    public boolean endHTTPStream() {
+        if (!sendStreamChunk()) {
+            return false;
+        }
+        addSegment(lastChunk, (short) 0, (short) lastChunk.length);
+        boolean sent = sendStream(true);
+        appStateBuffer[streamChannelIndex] = 0;
+        if (sent && keepAlive) {
+            startIdleTimer(keepAliveIdleTimeout);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the queued segments on the channel of the streamed request. On failure the
+     * channel is closed, as the peer cannot tell where the chunked body was cut.
+     *
+     * @param flush True to send all data, false to leave it stored
+     * @return False if the request failed and was abandoned
+     */
+    private boolean sendStream(boolean flush) {
+        byte bipChannelId = appStateBuffer[streamChannelIndex];
+        short slot = channels.find(bipChannelId);
+        if (slot < 0) {
+            clearSegments();
+            appStateBuffer[streamChannelIndex] = 0;
+            return false;
+        }
+        try {
+            short total = 0;
+            for (short i = 0; i < appStateBuffer[txSegmentCountIndex]; i++) {
+                total += txSegmentLengths[i];
+            }
+            channels.setPendingBytes(slot, (short) (channels.getPendingBytes(slot) + total));
+            channels.touch(slot);
+            sendSegments(bipChannelId, flush);
+            clearSegments();
+            return true;
+        } catch (Exception e) {
+            appStateBuffer[streamChannelIndex] = 0;
+            clearSegments();
+            reportStreamError(e);
+            // Abandon the half-sent request, unless the failed SEND DATA already closed the channel
+            if (channels.find(bipChannelId) >= 0) {
+                closeChannel(bipChannelId);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Logs the failure of a streamed request.
+     */
+    private void reportStreamError(Exception e) {
+        if (e instanceof UserException) {
+            diag.error(BIP_ERROR_USER_1, ((UserException) e).getReason());
+        } else if (e instanceof ToolkitException) {
+            diag.error(BIP_ERROR_TOOLKIT_2, ((ToolkitException) e).getReason());
+        } else {
+            DiagUtil.text(BIP_ERROR_GENERAL);
+        }
+    }
+
+    /**
+     * Queues the request header segments: the template up to the Content-Type subtype,
+     * the subtype, and the rest of the template. For a chunked request the
+     * Content-Length line is replaced by Transfer-Encoding.
+     *
+     * @param contentFormat Body format (CoapUtil.FORMAT_*)
+     * @param contentLength Length of the body, ignored if chunked
+     * @param chunked True for chunked transfer encoding
+     */
+    private void addHeaderSegments(short contentFormat, short contentLength, boolean chunked) {
+        if (headerLength == 0) {
+            buildHeaderTemplate();
+        }
+        byte[] contentSubtype = jsonSubtype;
+        if (contentFormat == CoapUtil.FORMAT_CBOR) {
+            contentSubtype = cborSubtype;
+        } else if (contentFormat == CoapUtil.FORMAT_NDJSON) {
+            contentSubtype = ndjsonSubtype;
+        }
+        addSegment(headerTemplate, (short) 0, headerTypeEnd);
+        addSegment(contentSubtype, (short) 0, (short) contentSubtype.length);
+        if (chunked) {
+            short tail = (short) (contentLengthOffset + CONTENT_LENGTH_DIGITS);
+            addSegment(chunkedEncodingHeader, (short) 0, (short) chunkedEncodingHeader.length);
+            addSegment(headerTemplate, tail, (short) (headerLength - tail));
+        } else {
+            patchContentLength(contentLength);
+            addSegment(headerTemplate, headerTypeEnd, (short) (headerLength - headerTypeEnd));
+        }
+    }
+
+    /**
+     * Sends the queued segments as a new request on an HTTP channel of the pool.
+     * <p>
+     * An idle open channel (kept alive or pre-warmed) is reused, otherwise a new channel
+     * is opened while the pool has room. If the reused channel turns out to be dead, a
+     * new one is opened and the request is sent again. Responses are reported to one
+     * listener without the request they answer, so the caller keeps a single request
+     * in progress at a time (see STKHandler).
+     *
+     * @param flush True to send all data, false to leave the last chunk stored
+     * @return Slot of the channel
+     */
+    private short sendHttpRequest(byte[] serverAddr, short serverPort, boolean flush) throws UserException, ToolkitException {
+        short slot = channels.find(ChannelPool.OWNER_HTTP, ChannelPool.STATE_IDLE);
+        boolean reused = slot >= 0;
+        if (!reused) {
+            slot = openPooledChannel(ChannelPool.OWNER_HTTP, serverAddr, serverPort);
+        }
+        try {
+            startHttpRequest(slot);
+            sendSegments(channels.getChannelId(slot), flush);
+        } catch (UserException e) {
+            if (!reused) {
+                throw e;
+            }
+            // The kept-alive connection was closed by the peer: reconnect once
+            slot = openPooledChannel(ChannelPool.OWNER_HTTP, serverAddr, serverPort);
+            startHttpRequest(slot);
+            sendSegments(channels.getChannelId(slot), flush);
+        }
+        if (flush && keepAlive) {
+            startIdleTimer(keepAliveIdleTimeout);
+        }
+        return slot;
+    }
+
+    /**
+     * Marks a pooled HTTP channel as waiting for the response to the queued segments.
+     */
+    private void startHttpRequest(short slot) {
+        short total = 0;
+        for (short i = 0; i < appStateBuffer[txSegmentCountIndex]; i++) {
+            total += txSegmentLengths[i];
+        }
+        responseParsers[slot].reset();
+        channels.setPendingBytes(slot, total);
+        channels.setState(slot, ChannelPool.STATE_BUSY);
+    }
+
+    /**
+     * Opens the channel of a transport ahead of a report, so that the next request
+     * does not wait for link establishment. The channel is closed by the idle timer
+     * if no request uses it. Failures are ignored: the next request opens the channel.
+     *
+     * @param transport TRANSPORT_HTTP or TRANSPORT_COAP
+     */
+    public void prewarmChannel(byte transport, byte[] serverAddr, short serverPort) {
+        byte owner = transport == TRANSPORT_COAP ? ChannelPool.OWNER_COAP : ChannelPool.OWNER_HTTP;
+        if (channels.findOwner(owner) >= 0 || channels.isFull()) {
+            return;
+        }
+        try {
+            channels.add(openChannel(transport == TRANSPORT_COAP, serverAddr, serverPort), owner);
+            startIdleTimer(keepAliveIdleTimeout);
+        } catch (Exception e) {
+            // The next request opens the channel
+        }
+    }
+
+    /**
+     * Returns the largest body that can be sent by sendCoapPost() to the given path and
+     * host: the datagram is built in httpHeaderBuffer, with room left for the response.
+     */
+    public short getMaxCoapBody(byte[] apiPath, byte[] hostName) {
+        return (short) (httpHeaderBuffer.length - COAP_RESPONSE_ROOM
+                - CoapUtil.getPostOverhead(hostName, apiPath, (short) apiPath.length));
+    }
+
+    /**
+     * Sends a report as a confirmable CoAP POST over UDP (RFC 7252).
+     * <p>
+     * The datagram is kept in httpHeaderBuffer and retransmitted with exponential
+     * backoff on the BIP timer until it is acknowledged or COAP_MAX_RETRANSMIT is
+     * reached. The response code is reported to the listener as an HTTP-style status.
+     * <p>
+     * Only one exchange is outstanding at a time (NSTART = 1, RFC 7252 Clause 4.7):
+     * while it is pending the request fails temporarily and is retried later. A body
+     * longer than getMaxCoapBody() fails permanently.
+     *
+     * @return True if the request has been sent
+     */
+    public boolean sendCoapPost(byte[] bodyBuffer, short bodyLength, short contentFormat,
+                             byte[] serverAddr, short serverPort,
+                             byte[] apiPath, byte[] hostName) {
+        appStateBuffer[lastFailureIndex] = FAILURE_NONE;
+        try {
+            if (coapState[IDX_COAP_STATE] != COAP_IDLE) {
+                appStateBuffer[lastFailureIndex] = FAILURE_TEMPORARY;
+                UserException.throwIt((short) 0x7004);
+            }
+            if (bodyLength > getMaxCoapBody(apiPath, hostName)) {
+                appStateBuffer[lastFailureIndex] = FAILURE_PERMANENT;
+                UserException.throwIt((short) 0x7005);
+            }
+            coapMessageId++;
+            short length = CoapUtil.buildPost(httpHeaderBuffer, (short) 0, coapMessageId,
+                    hostName, apiPath, (short) apiPath.length, contentFormat,
+                    bodyBuffer, (short) 0, bodyLength);
+
+            short slot = channels.findOwner(ChannelPool.OWNER_COAP);
+            if (slot < 0) {
+                slot = openPooledChannel(ChannelPool.OWNER_COAP, serverAddr, serverPort);
+            }
+            byte bipChannelId = channels.getChannelId(slot);
+            channels.setPendingBytes(slot, length);
+            channels.setState(slot, ChannelPool.STATE_BUSY);
+
+            // Initial timeout between ACK_TIMEOUT and ACK_TIMEOUT * 1.5
+            random.generateData(tmpBuffer, (short) 0, (short) 1);
+            coapState[IDX_COAP_TIMEOUT] = (short) (COAP_ACK_TIMEOUT + (tmpBuffer[0] & 0x01));
+            coapState[IDX_COAP_MESSAGE_ID] = coapMessageId;
+            coapState[IDX_COAP_LENGTH] = length;
+            coapState[IDX_COAP_RETRANSMITS] = 0;
+            coapState[IDX_COAP_CHANNEL] = bipChannelId;
+            coapState[IDX_COAP_STATE] = COAP_AWAITING_ACK;
+
+            sendCoapDatagram(bipChannelId);
+            return true;
+        } catch (ToolkitException e) {
+            diag.error(BIP_ERROR_TOOLKIT_2, e.getReason());
+        } catch (UserException e) {
+            if (e.getReason() >= 0x7000) {
+                diag.error(BIP_ERROR_USER_1, e.getReason());
+            } else {
+                diag.error(BIP_ERROR_USER_2, e.getReason());
+            }
+        } catch (Exception e) {
+            DiagUtil.text(BIP_ERROR_GENERAL);
+        }
+        return false;
+    }
+
+    /**
+     * Sends the pending CoAP datagram and arms the retransmission timer.
+     */
+    private void sendCoapDatagram(byte bipChannelId) throws UserException {
+        clearSegments();
+        addSegment(httpHeaderBuffer, (short) 0, coapState[IDX_COAP_LENGTH]);
+        sendSegments(bipChannelId, true);
+        TimerUtil.start(idleTimerId, coapState[IDX_COAP_TIMEOUT]);
+    }
+
+    /**
+     * Retransmits the pending CoAP datagram with a doubled timeout, or gives up
+     * once COAP_MAX_RETRANSMIT is reached.
+     */
+    private void retransmitCoap() throws UserException {
+        byte bipChannelId = (byte) coapState[IDX_COAP_CHANNEL];
+        if (coapState[IDX_COAP_RETRANSMITS] < COAP_MAX_RETRANSMIT) {
+            coapState[IDX_COAP_RETRANSMITS]++;
+            coapState[IDX_COAP_TIMEOUT] = (short) (coapState[IDX_COAP_TIMEOUT] * 2);
+            sendCoapDatagram(bipChannelId);
+        } else {
+            closeChannel(bipChannelId);
+            diag.error(BIP_ERROR_COAP, coapState[IDX_COAP_MESSAGE_ID]);
+            notifyFailure();
+        }
+    }
+
+    /**
+     * Processes a datagram received on the CoAP channel.
+     * <p>
+     * The datagram is read into httpHeaderBuffer right after the pending request, so
+     * that an unrelated datagram does not corrupt a later retransmission. ACKs and RSTs
+     * are matched by message ID, separate responses by token.
+     *
+     * @param channelId Channel identifier
+     * @param length Length of the data available in the terminal
+     */
+    private void processCoapResponse(byte channelId, short length) {
+        ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
+
+        short rxOffset = coapState[IDX_COAP_LENGTH];
+        short readLength = (short) (httpHeaderBuffer.length - rxOffset);
+        if (readLength > MAX_RECEIVE_CHUNK) {
+            readLength = MAX_RECEIVE_CHUNK;
+        }
+        if (readLength > length) {
+            readLength = length;
+        }
+
+        ph.init(PRO_CMD_RECEIVE_DATA, (byte) 0x00, (byte) (DEV_ID_CHANNEL_BASE + channelId));
+        ph.appendTLV(TAG_CHANNEL_DATA_LENGTH, (byte) readLength);
+        ph.send();
+        if (rh.getGeneralResult() != RES_CMD_PERF || coapState[IDX_COAP_STATE] == COAP_IDLE) {
+            return;
+        }
+        short received = (short) (rh.findAndCopyValue(TAG_CHANNEL_DATA, httpHeaderBuffer, rxOffset) - rxOffset);
+
+        byte type = CoapUtil.getType(httpHeaderBuffer, rxOffset, received);
+        short pendingId = coapState[IDX_COAP_MESSAGE_ID];
+        byte code = CoapUtil.getCode(httpHeaderBuffer, rxOffset);
 
+        if ((type == CoapUtil.TYPE_ACK || type == CoapUtil.TYPE_RST)
+                && CoapUtil.getMessageId(httpHeaderBuffer, rxOffset) == pendingId) {
+            if (type == CoapUtil.TYPE_RST) {
+                closeChannel(channelId);
+                diag.error(BIP_ERROR_COAP, pendingId);
+                notifyFailure();
+            } else if (code == CoapUtil.CODE_EMPTY) {
+                // Empty ACK: a separate response follows
+                coapState[IDX_COAP_STATE] = COAP_AWAITING_RESPONSE;
+                TimerUtil.start(idleTimerId, COAP_RESPONSE_TIMEOUT);
+            } else {
+                completeCoap(channelId, code, rxOffset, received);
+            }
+        } else if ((type == CoapUtil.TYPE_CON || type == CoapUtil.TYPE_NON)
+                && CoapUtil.hasToken(httpHeaderBuffer, rxOffset, received, pendingId)) {
+            if (type == CoapUtil.TYPE_CON) {
+                short ackLength = CoapUtil.buildEmptyAck(tmpBuffer, (short) 0,
+                        CoapUtil.getMessageId(httpHeaderBuffer, rxOffset));
+                clearSegments();
+                addSegment(tmpBuffer, (short) 0, ackLength);
+                try {
+                    sendSegments(channelId, true);
+                } catch (UserException e) {
+                    // The response is still valid even if the ACK could not be sent
+                }
+            }
+            completeCoap(channelId, code, rxOffset, received);
+        }
+    }
+
+    /**
+     * Ends the CoAP exchange and reports the response to the listener.
+     * The payload is located first, so that the exchange is only ended once the
+     * response has been parsed.
+     */
+    private void completeCoap(byte channelId, byte code, short offset, short length) {
+        short end = (short) (offset + length);
+        short payload = CoapUtil.findPayload(httpHeaderBuffer, offset, length);
+        coapState[IDX_COAP_STATE] = COAP_IDLE;
+        short slot = channels.find(channelId);
+        if (slot >= 0) {
+            channels.setPendingBytes(slot, (short) 0);
+            channels.setState(slot, ChannelPool.STATE_IDLE);
+        }
+        if (responseListener != null) {
+            responseListener.onStatus(CoapUtil.toStatus(code));
+            if (payload < end) {
+                responseListener.onBody(httpHeaderBuffer, payload, (short) (end - payload));
+            }
+            responseListener.onComplete();
+        }
+        if (keepAlive) {
+            startIdleTimer(keepAliveIdleTimeout);
+        } else {
+            closeChannel(channelId);
+        }
+    }
+
+    /**
+     * Notifies the listener that a request ended without a final response.
+     */
+    private void notifyFailure() {
+        if (responseListener != null) {
+            responseListener.onFailure();
+        }
+    }
+
+    /**
+     * Returns true if the HTTP channel in a slot is waiting for the status of a response.
+     */
+    private boolean isAwaitingStatus(short slot) {
+        return channels.getOwner(slot) == ChannelPool.OWNER_HTTP
+                && channels.getState(slot) == ChannelPool.STATE_BUSY
+                && !responseParsers[slot].hasStatus();
+    }
+
+    /**
+     * Answers a request received on the UICC server channel.
+     * <p>
+     * Only the request line of a GET request is used: the path is passed to the server
+     * listener, which writes a JSON body. The request and the body are kept in
+     * serverBuffer, and the response header is sent from constants. The response is sent
+     * with "Connection: close" and the client is then dropped, the channel going back to
+     * listening, even if the request could not be answered.
+     *
+     * @param channelId Channel identifier
+     * @param length Length of the data available in the terminal
+     */
+    private void processServerRequest(byte channelId, short length) throws UserException {
+        try {
+            ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+            ProactiveResponseHandler rh = ProactiveResponseHandlerSystem.getTheHandler();
+
+            short readLength = length < SERVER_READ_SIZE ? length : SERVER_READ_SIZE;
+            ph.init(PRO_CMD_RECEIVE_DATA, (byte) 0x00, (byte) (DEV_ID_CHANNEL_BASE + channelId));
+            ph.appendTLV(TAG_CHANNEL_DATA_LENGTH, (byte) readLength);
+            ph.send();
+            if (rh.getGeneralResult() != RES_CMD_PERF) {
+                return;
+            }
+            short end = rh.findAndCopyValue(TAG_CHANNEL_DATA, serverBuffer, (short) 0);
+
+            // Request line: method, path and version separated by spaces
+            byte[] statusLine = badMethodStatusLine;
+            short bodyLength = 0;
+            short pathOffset = (short) getMethod.length;
+            if (pathOffset <= end
+                    && Util.arrayCompare(getMethod, (short) 0, serverBuffer, (short) 0, (short) getMethod.length) == 0) {
+                short pathEnd = pathOffset;
+                while (pathEnd < end && serverBuffer[pathEnd] != ' ' && serverBuffer[pathEnd] != '\r') {
+                    pathEnd++;
+                }
+                statusLine = notFoundStatusLine;
+                if (serverListener != null) {
+                    try {
+                        bodyLength = serverListener.onRequest(serverBuffer, pathOffset, (short) (pathEnd - pathOffset),
+                                serverBuffer, end);
+                        if (bodyLength >= 0) {
+                            statusLine = okStatusLine;
+                        } else {
+                            bodyLength = 0;
+                        }
+                    } catch (Exception e) {
+                        statusLine = errorStatusLine;
+                        bodyLength = 0;
+                    }
+                }
+            }
+
+            short digitsLength = ByteUtil.numToCharArray(bodyLength, chunkSizeBuffer, (short) 0);
+            if (digitsLength == 0) {
+                chunkSizeBuffer[digitsLength++] = '0';
+            }
+
+            clearSegments();
+            addSegment(statusLine, (short) 0, (short) statusLine.length);
+            if (bodyLength > 0) {
+                addSegment(serverTypeHeader, (short) 0, (short) serverTypeHeader.length);
+            }
+            addSegment(serverLengthHeader, (short) 0, (short) serverLengthHeader.length);
+            addSegment(chunkSizeBuffer, (short) 0, digitsLength);
+            addSegment(serverCloseHeader, (short) 0, (short) serverCloseHeader.length);
+            if (bodyLength > 0) {
+                addSegment(serverBuffer, end, bodyLength);
+            }
+            sendSegments(channelId, true);
+        } finally {
+            resetServer(channelId);
+        }
+    }
+
+    /**
+     * Drops the client of the UICC server channel and listens again.
+     * The channel is removed from the pool if the terminal refuses.
+     */
+    private void resetServer(byte channelId) {
+        ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        ph.init(PRO_CMD_CLOSE_CHANNEL, CLOSE_TO_LISTEN, (byte) (DEV_ID_CHANNEL_BASE + channelId));
+        if (ph.send() != RES_CMD_PERF) {
+            short slot = channels.find(channelId);
+            if (slot >= 0) {
+                channels.remove(slot);
+            }
+        }
     }
 
     /**
      * Handles EVENT_DOWNLOAD_DATA_AVAILABLE to process incoming data.
+     * The data is routed to the session of the channel it was received on.
      */
-    public void processEventEventDownloadDataAvailable(EnvelopeHandler eh) {
+    public void processEventEventDownloadDataAvailable(EnvelopeHandler eh) throws UserException {
         byte channelId = eh.getChannelIdentifier();
         eh.findAndCopyValue(TAG_CHANNEL_DATA_LENGTH, tmpBuffer, (short) 0);
         short length = (short) (tmpBuffer[0] & 0xff);
 
-        if (channelId == appStateBuffer[httpBIPChannelIndex]) {
-            processHTTPResponse(channelId, length, httpHeaderBuffer, (short) 0, (short) httpHeaderBuffer.length);
-            closeChannel(channelId);
-            DiagUtil.text(httpHeaderBuffer, (short) 0, (short) 32);
+        short slot = channels.find(channelId);
+        if (slot < 0) {
+            return;
+        }
+        channels.touch(slot);
+        byte owner = channels.getOwner(slot);
+        if (owner == ChannelPool.OWNER_SERVER) {
+            processServerRequest(channelId, length);
+        } else if (owner == ChannelPool.OWNER_COAP) {
+            processCoapResponse(channelId, length);
+        } else {
+            HttpResponseParser responseParser = responseParsers[slot];
+            processHTTPResponse(channelId, responseParser, length);
+            if (statusOnly && responseParser.hasStatus()) {
+                // The rest of the response is discarded with the channel
+                closeChannel(channelId);
+            } else if (responseParser.isComplete()) {
+                if (keepAlive) {
+                    // The channel is free for the next request
+                    channels.setPendingBytes(slot, (short) 0);
+                    channels.setState(slot, ChannelPool.STATE_IDLE);
+                    startIdleTimer(keepAliveIdleTimeout);
+                } else {
+                    closeChannel(channelId);
+                }
+            } else if (keepAlive) {
+                startIdleTimer(keepAliveIdleTimeout);
+            }
         }
     }
 
@@ -306,13 +1452,65 @@ public class BIPManager {
     public void procesEventEventDownloadChannelStatus(EnvelopeHandler eh) {
         byte channelId = eh.getChannelIdentifier();
         short channelStatus = eh.getChannelStatus(channelId);
-        if ((channelStatus & (short) 0x8000) == 0) {
-            if (channelId == appStateBuffer[httpBIPChannelIndex]) {
-                appStateBuffer[httpBIPChannelIndex] = 0;
+        short slot = channels.find(channelId);
+        if (slot >= 0 && channels.getOwner(slot) == ChannelPool.OWNER_SERVER) {
+            // A client that disconnects leaves the server channel closed until it listens again
+            if ((channelStatus & SERVER_STATE_MASK) == SERVER_STATE_CLOSED) {
+                resetServer(channelId);
+            }
+        } else if ((channelStatus & (short) 0x8000) == 0 && slot >= 0) {
+            if (channels.getOwner(slot) == ChannelPool.OWNER_COAP) {
+                boolean pending = coapState[IDX_COAP_STATE] != COAP_IDLE;
+                closeChannel(channelId);
+                if (pending) {
+                    diag.error(BIP_ERROR_COAP, channelStatus);
+                    notifyFailure();
+                }
+            } else {
+                // A response delimited by the connection close ends here
+                boolean failed = isAwaitingStatus(slot);
+                boolean completed = responseParsers[slot].finish();
                 closeChannel(channelId);
-                diag.error(BIP_ERROR_GENERAL, channelStatus);
+                if (failed) {
+                    notifyFailure();
+                }
+                if (keepAlive) {
+                    // Link drop of an idle kept-alive channel is expected
+                    if (channels.isEmpty()) {
+                        TimerUtil.stop(idleTimerId);
+                    }
+                } else if (!completed) {
+                    diag.error(BIP_ERROR_GENERAL, channelStatus);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles EVENT_TIMER_EXPIRATION for timers owned by the BIP manager.
+     *
+     * The BIP timer drives CoAP retransmissions while an exchange is pending,
+     * and otherwise closes the channels that stayed idle.
+     *
+     * @param timerId Identifier of the expired timer
+     * @return True if the timer belongs to this manager
+     */
+    public boolean processTimerExpiration(byte timerId) throws UserException {
+        if (timerId != idleTimerId) {
+            return false;
+        }
+        short coapExchange = coapState[IDX_COAP_STATE];
+        if (coapExchange == COAP_AWAITING_ACK) {
+            retransmitCoap();
+        } else {
+            if (coapExchange == COAP_AWAITING_RESPONSE) {
+                diag.error(BIP_ERROR_COAP, coapState[IDX_COAP_MESSAGE_ID]);
+                closeChannel((byte) coapState[IDX_COAP_CHANNEL]);
+                notifyFailure();
             }
+            closeIdleChannels();
         }
+        return true;
     }
 
 }
@@ -0,0 +1,154 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.Util;
+
+/**
+ * BatchUtil class
+ * <p>
+ * Provides utility methods for appending several encoded reports into one request body,
+ * as a JSON array, newline-delimited JSON (NDJSON) or a CBOR array.
+ * <p>
+ * A batch is written with begin(), one append() per record and end():
+ * <pre>
+ *     short off = BatchUtil.begin(framing, out, start);
+ *     off = BatchUtil.append(framing, count++, record, recordOff, recordLen, out, off);
+ *     off = BatchUtil.end(framing, count, out, start, off);
+ * </pre>
+ * A streamed batch, whose records are not copied into one buffer, is written with
+ * begin() given the record count, then prefix(), the record and suffix() for each
+ * record, and end() with no start byte to patch.
+ */
+public class BatchUtil {
+
+    // Batch framings
+    public static final byte FRAMING_JSON_ARRAY = 0;
+    public static final byte FRAMING_NDJSON = 1;
+    public static final byte FRAMING_CBOR_ARRAY = 2;
+
+    // A CBOR array count is patched into a single header byte
+    public static final short MAX_CBOR_RECORDS = 23;
+
+    private static final byte JSON_ARRAY_START = '[';
+    private static final byte JSON_ARRAY_END = ']';
+    private static final byte JSON_SEPARATOR = ',';
+    private static final byte NEW_LINE = '\n';
+    private static final byte CBOR_ARRAY = (byte) 0x80;
+
+    /**
+     * Starts a batch.
+     *
+     * @param framing Batch framing
+     * @param outBuffer Output buffer
+     * @param outOffset Starting offset of the batch
+     * @return Offset of the first record
+     */
+    public static short begin(byte framing, byte[] outBuffer, short outOffset) {
+        if (framing == FRAMING_JSON_ARRAY) {
+            outBuffer[outOffset++] = JSON_ARRAY_START;
+        } else if (framing == FRAMING_CBOR_ARRAY) {
+            // Count is written by end()
+            outOffset++;
+        }
+        return outOffset;
+    }
+
+    /**
+     * Starts a batch whose record count is known in advance, so that a CBOR array
+     * header does not have to be patched afterwards.
+     *
+     * @param framing Batch framing
+     * @param count Number of records in the batch
+     * @param outBuffer Output buffer
+     * @param outOffset Starting offset of the batch
+     * @return Offset of the first record
+     */
+    public static short begin(byte framing, short count, byte[] outBuffer, short outOffset) {
+        if (framing == FRAMING_CBOR_ARRAY) {
+            outBuffer[outOffset++] = (byte) (CBOR_ARRAY | count);
+            return outOffset;
+        }
+        return begin(framing, outBuffer, outOffset);
+    }
+
+    /**
+     * Writes the framing bytes placed before a record.
+     *
+     * @param framing Batch framing
+     * @param index Number of records already in the batch
+     * @param outBuffer Output buffer
+     * @param outOffset Current offset
+     * @return New offset after writing
+     */
+    public static short prefix(byte framing, short index, byte[] outBuffer, short outOffset) {
+        if (framing == FRAMING_JSON_ARRAY && index > 0) {
+            outBuffer[outOffset++] = JSON_SEPARATOR;
+        }
+        return outOffset;
+    }
+
+    /**
+     * Writes the framing bytes placed after a record.
+     *
+     * @param framing Batch framing
+     * @param outBuffer Output buffer
+     * @param outOffset Current offset
+     * @return New offset after writing
+     */
+    public static short suffix(byte framing, byte[] outBuffer, short outOffset) {
+        if (framing == FRAMING_NDJSON) {
+            outBuffer[outOffset++] = NEW_LINE;
+        }
+        return outOffset;
+    }
+
+    /**
+     * Appends a record to the batch.
+     *
+     * @param framing Batch framing
+     * @param index Number of records already in the batch
+     * @param record Buffer containing the encoded record
+     * @param recordOffset Offset of the record
+     * @param recordLength Length of the record
+     * @param outBuffer Output buffer
+     * @param outOffset Current offset
+     * @return New offset after writing
+     */
+    public static short append(byte framing, short index,
+                               byte[] record, short recordOffset, short recordLength,
+                               byte[] outBuffer, short outOffset) {
+        outOffset = prefix(framing, index, outBuffer, outOffset);
+        outOffset = Util.arrayCopyNonAtomic(record, recordOffset, outBuffer, outOffset, recordLength);
+        return suffix(framing, outBuffer, outOffset);
+    }
+
+    /**
+     * Ends the batch.
+     *
+     * @param framing Batch framing
+     * @param count Number of records in the batch
+     * @param outBuffer Output buffer
+     * @param startOffset Starting offset of the batch, as passed to begin(), or -1 if
+     *                    begin() was given the record count
+     * @param outOffset Current offset
+     * @return New offset after writing
+     */
+    public static short end(byte framing, short count, byte[] outBuffer, short startOffset, short outOffset) {
+        if (framing == FRAMING_JSON_ARRAY) {
+            outBuffer[outOffset++] = JSON_ARRAY_END;
+        } else if (framing == FRAMING_CBOR_ARRAY && startOffset >= 0) {
+            outBuffer[startOffset] = (byte) (CBOR_ARRAY | count);
+        }
+        return outOffset;
+    }
+
+    /**
+     * Returns the number of framing bytes added around a record, including the closing byte.
+     * Used to check that a record still fits before appending it.
+     */
+    public static short recordOverhead(byte framing) {
+        if (framing == FRAMING_JSON_ARRAY) {
+            return 2;
+        }
+        return (short) (framing == FRAMING_NDJSON ? 1 : 0);
+    }
+}
@@ -32,6 +32,63 @@ public class ByteUtil {
         }
     }
 
+    /**
+     * 上位4bitと下位4bitが入れ替わったBCD (ICCID、IMEI、PLMNなど) を1パスでASCII文字列に変換する
+     * <p>
+     * nibbleSwapとbytesToHexを続けて呼ぶのと同じ結果を、中間バッファを使わずに出力先へ直接書き込む。
+     * 桁は各バイトの下位4bit、上位4bitの順に数える。
+     *
+     * @param inBuffer       BCDのbyte配列
+     * @param inOffset       BCDのオフセット
+     * @param firstDigit     変換する最初の桁 (0から)
+     * @param digitCount     変換する桁数
+     * @param outBuffer      文字列出力先のbyte配列
+     * @param outOffset      出力先のoffset
+     * @param filler         10進数でない桁 (0xA-0xF) の代わりに書く文字。0の場合は16進数の文字を書く
+     * @param trimTrailingF  trueの場合、末尾の0xFの桁 (パディング) を出力しない
+     * @return 出力した桁数
+     */
+    public static short swappedBcdToAscii(byte[] inBuffer, short inOffset, short firstDigit, short digitCount,
+                                          byte[] outBuffer, short outOffset, byte filler, boolean trimTrailingF) {
+        short end = (short) (firstDigit + digitCount);
+        if (trimTrailingF) {
+            while (end > firstDigit && swappedBcdDigit(inBuffer, inOffset, (short) (end - 1)) == 0x0F) {
+                end--;
+            }
+        }
+        for (short i = firstDigit; i < end; i++) {
+            byte digit = swappedBcdDigit(inBuffer, inOffset, i);
+            outBuffer[outOffset++] = (digit > 9 && filler != 0) ? filler : hex[digit];
+        }
+        return (short) (end - firstDigit);
+    }
+
+    /**
+     * byte配列の指定ビット位置から最大8ビットの値を読む (unaligned PERで符号化された値など)
+     * <p>
+     * ビット位置は先頭バイトの最上位ビットを0として数え、指定ビットを含むバイトと次のバイトを読む。
+     *
+     * @param buffer   対象のbyte配列
+     * @param offset   先頭のオフセット
+     * @param firstBit 最初のビット位置
+     * @param bitCount ビット数 (1から8)
+     * @return 読み出した値
+     */
+    public static short getBits(byte[] buffer, short offset, short firstBit, short bitCount) {
+        short index = (short) (offset + (short) (firstBit >> 3));
+        short word = (short) (((buffer[index] & 0xFF) << 8) | (buffer[(short) (index + 1)] & 0xFF));
+        short shift = (short) (16 - (firstBit & 7) - bitCount);
+        return (short) ((word >> shift) & ((1 << bitCount) - 1));
+    }
+
+    /**
+     * 上位4bitと下位4bitが入れ替わったBCDの指定桁を返す
+     */
+    private static byte swappedBcdDigit(byte[] inBuffer, short inOffset, short index) {
+        byte v = inBuffer[(short) (inOffset + (short) (index >> 1))];
+        return (byte) ((index & 1) == 0 ? (v & 0x0F) : ((v >> 4) & 0x0F));
+    }
+
     /**
      * shortの数値をbyte配列の文字列に変換する
      *
@@ -104,7 +161,8 @@ public class ByteUtil {
         short sum = 0;
         for (short i = offset; i < (short) (offset + length); i++) {
             short n = (short) (buffer[i] - '0');
-            if (i % 2 == 0) {
+            // 先頭から2桁目ごとに2倍する (offsetの偶奇に依存しない)
+            if (((short) (i - offset) & 1) != 0) {
                 short t = (short) (n * 2);
                 sum += (short) ((t / 10) + (t % 10));
             } else {
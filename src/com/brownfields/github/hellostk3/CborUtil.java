@@ -0,0 +1,108 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.Util;
+
+/**
+ * CborUtil class
+ * <p>
+ * Provides utility methods for building CBOR structures (RFC 8949) in a byte array format,
+ * optimized for JavaCard environments with limited resources.
+ * Values are written as raw byte strings, so packed BCD fields are sent without text expansion.
+ */
+public class CborUtil {
+
+    // Major types
+    private static final byte MAJOR_UNSIGNED = 0x00;
+    private static final byte MAJOR_BYTE_STRING = 0x40;
+    private static final byte MAJOR_MAP = (byte) 0xA0;
+
+    // Additional information values
+    private static final short MAX_DIRECT_VALUE = 23;
+    private static final byte ONE_BYTE_FOLLOWS = 24;
+    private static final byte TWO_BYTES_FOLLOW = 25;
+
+    /**
+     * Builds a CBOR map with integer keys and byte string values into the provided output buffer.
+     *
+     * @param keyIds Integer key of each entry
+     * @param flatValues Buffer containing all values
+     * @param valueOffsets Offsets inside the value buffer
+     * @param valueLengths Lengths of each value
+     * @param outBuffer Buffer where the CBOR map will be written
+     * @param outOffset Starting offset in the output buffer
+     * @return New offset after writing the map
+     */
+    public static short buildCbor(byte[] keyIds,
+                                  byte[] flatValues, short[] valueOffsets, short[] valueLengths,
+                                  byte[] outBuffer, short outOffset) {
+        return buildCbor(keyIds, flatValues, valueOffsets, valueLengths, (short) -1, outBuffer, outOffset);
+    }
+
+    /**
+     * Builds a CBOR map with only the selected entries into the provided output buffer.
+     *
+     * @param fieldMask Bit i set to include entry i
+     * @param outBuffer Buffer where the CBOR map will be written
+     * @param outOffset Starting offset in the output buffer
+     * @return New offset after writing the map
+     */
+    public static short buildCbor(byte[] keyIds,
+                                  byte[] flatValues, short[] valueOffsets, short[] valueLengths,
+                                  short fieldMask, byte[] outBuffer, short outOffset) {
+        short count = 0;
+        for (short i = 0; i < (short) keyIds.length; i++) {
+            if ((fieldMask & (short) (1 << i)) != 0) {
+                count++;
+            }
+        }
+        outOffset = addHeader(outBuffer, outOffset, MAJOR_MAP, count);
+
+        for (short i = 0; i < (short) keyIds.length; i++) {
+            if ((fieldMask & (short) (1 << i)) == 0) {
+                continue;
+            }
+            outOffset = addHeader(outBuffer, outOffset, MAJOR_UNSIGNED, keyIds[i]);
+            outOffset = addByteString(outBuffer, outOffset, flatValues, valueOffsets[i], valueLengths[i]);
+        }
+
+        return outOffset;
+    }
+
+    /**
+     * Adds a byte string (header and value).
+     *
+     * @param buffer Output buffer
+     * @param offset Current offset
+     * @param value Buffer containing the value
+     * @param valueOffset Offset within the value buffer
+     * @param valueLength Length of the value to copy
+     * @return New offset after writing
+     */
+    private static short addByteString(byte[] buffer, short offset,
+                                       byte[] value, short valueOffset, short valueLength) {
+        offset = addHeader(buffer, offset, MAJOR_BYTE_STRING, valueLength);
+        return Util.arrayCopyNonAtomic(value, valueOffset, buffer, offset, valueLength);
+    }
+
+    /**
+     * Adds an item header using the shortest argument encoding.
+     *
+     * @param buffer Output buffer
+     * @param offset Current offset
+     * @param majorType Major type, already shifted into the upper three bits
+     * @param value Argument of the header (count, length or integer value)
+     * @return New offset after writing
+     */
+    private static short addHeader(byte[] buffer, short offset, byte majorType, short value) {
+        if (value <= MAX_DIRECT_VALUE) {
+            buffer[offset++] = (byte) (majorType | value);
+        } else if (value <= 0xFF) {
+            buffer[offset++] = (byte) (majorType | ONE_BYTE_FOLLOWS);
+            buffer[offset++] = (byte) value;
+        } else {
+            buffer[offset++] = (byte) (majorType | TWO_BYTES_FOLLOW);
+            offset = Util.setShort(buffer, offset, value);
+        }
+        return offset;
+    }
+}
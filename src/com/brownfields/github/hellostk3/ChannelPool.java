@@ -0,0 +1,226 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.JCSystem;
+import uicc.toolkit.TerminalProfile;
+
+/**
+ * ChannelPool class
+ * <p>
+ * Table of the open BIP channels: channel identifier, state, owner, bytes pending and
+ * last activity. Envelopes are routed to their session by channel identifier, so
+ * several sessions can be open at the same time, up to the number of channels the
+ * terminal supports.
+ * <p>
+ * Activity is recorded as a tick that increases on every use of a channel, as the
+ * card has no clock. A channel is idle if it was not used since a given tick.
+ */
+public class ChannelPool {
+
+    // Channel owners
+    public static final byte OWNER_HTTP = 1;
+    public static final byte OWNER_COAP = 2;
+    public static final byte OWNER_SERVER = 3;
+
+    // Channel states
+    public static final byte STATE_FREE = 0;
+    public static final byte STATE_IDLE = 1;
+    public static final byte STATE_BUSY = 2;
+
+    // Maximum number of pooled channels
+    public static final short POOL_SIZE = 4;
+
+    // Number of channels supported by the terminal: terminal profile byte 13, bits 6 to 8
+    private static final short PROFILE_CHANNELS_INDEX = 101;
+    private static final short PROFILE_CHANNELS_LENGTH = 3;
+
+    private final byte[] channelIds;
+    private final byte[] states;
+    private final byte[] owners;
+    private final short[] pendingBytes;
+    private final short[] lastActivity;
+
+    // Capacity (0 until read from the terminal profile) and activity tick
+    private final short[] poolState;
+    private static final short IDX_CAPACITY = 0;
+    private static final short IDX_TICK = 1;
+
+    /**
+     * Constructor
+     */
+    public ChannelPool() {
+        channelIds = JCSystem.makeTransientByteArray(POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        states = JCSystem.makeTransientByteArray(POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        owners = JCSystem.makeTransientByteArray(POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        pendingBytes = JCSystem.makeTransientShortArray(POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        lastActivity = JCSystem.makeTransientShortArray(POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        poolState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Returns the number of channels that can be open at the same time: the number
+     * supported by the terminal, limited to POOL_SIZE.
+     */
+    public short getCapacity() {
+        short capacity = poolState[IDX_CAPACITY];
+        if (capacity == 0) {
+            try {
+                capacity = TerminalProfile.getValue(PROFILE_CHANNELS_INDEX, PROFILE_CHANNELS_LENGTH);
+            } catch (Exception e) {
+                capacity = 1;
+            }
+            if (capacity < 1) {
+                capacity = 1;
+            } else if (capacity > POOL_SIZE) {
+                capacity = POOL_SIZE;
+            }
+            poolState[IDX_CAPACITY] = capacity;
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns true if no further channel can be opened.
+     */
+    public boolean isFull() {
+        short used = 0;
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] != STATE_FREE) {
+                used++;
+            }
+        }
+        return used >= getCapacity();
+    }
+
+    /**
+     * Returns true if no channel is open.
+     */
+    public boolean isEmpty() {
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] != STATE_FREE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds an opened channel in the idle state.
+     *
+     * @param channelId Channel identifier
+     * @param owner Owner of the channel (OWNER_*)
+     * @return Slot of the channel, or -1 if the table is full
+     */
+    public short add(byte channelId, byte owner) {
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] == STATE_FREE) {
+                channelIds[slot] = channelId;
+                owners[slot] = owner;
+                pendingBytes[slot] = 0;
+                states[slot] = STATE_IDLE;
+                touch(slot);
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a channel from the table.
+     */
+    public void remove(short slot) {
+        states[slot] = STATE_FREE;
+        channelIds[slot] = 0;
+        owners[slot] = 0;
+        pendingBytes[slot] = 0;
+    }
+
+    /**
+     * Returns the slot of a channel, or -1 if it is not in the table.
+     */
+    public short find(byte channelId) {
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] != STATE_FREE && channelIds[slot] == channelId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of a channel of the given owner and state, or -1 if there is none.
+     */
+    public short find(byte owner, byte state) {
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] == state && owners[slot] == owner) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of any open channel of the given owner, or -1 if there is none.
+     */
+    public short findOwner(byte owner) {
+        for (short slot = 0; slot < POOL_SIZE; slot++) {
+            if (states[slot] != STATE_FREE && owners[slot] == owner) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public byte getChannelId(short slot) {
+        return channelIds[slot];
+    }
+
+    public byte getOwner(short slot) {
+        return owners[slot];
+    }
+
+    public byte getState(short slot) {
+        return states[slot];
+    }
+
+    /**
+     * Sets the state of a channel and records activity.
+     */
+    public void setState(short slot, byte state) {
+        states[slot] = state;
+        touch(slot);
+    }
+
+    public short getPendingBytes(short slot) {
+        return pendingBytes[slot];
+    }
+
+    /**
+     * Sets the number of bytes sent on a channel and not yet answered.
+     */
+    public void setPendingBytes(short slot, short length) {
+        pendingBytes[slot] = length;
+    }
+
+    /**
+     * Records activity on a channel.
+     */
+    public void touch(short slot) {
+        short tick = (short) (poolState[IDX_TICK] + 1);
+        poolState[IDX_TICK] = tick;
+        lastActivity[slot] = tick;
+    }
+
+    /**
+     * Returns the current activity tick.
+     */
+    public short getTick() {
+        return poolState[IDX_TICK];
+    }
+
+    /**
+     * Returns true if the channel was not used after the given tick.
+     */
+    public boolean isIdleSince(short slot, short tick) {
+        return states[slot] != STATE_FREE && (short) (lastActivity[slot] - tick) <= 0;
+    }
+}
@@ -0,0 +1,285 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.Util;
+
+/**
+ * CoapUtil class
+ * <p>
+ * Provides utility methods for building and parsing CoAP messages (RFC 7252)
+ * in a byte array format, optimized for JavaCard environments with limited resources.
+ */
+public class CoapUtil {
+
+    // Message types
+    public static final byte TYPE_CON = 0;
+    public static final byte TYPE_NON = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_RST = 3;
+
+    // Method and empty message codes
+    public static final byte CODE_EMPTY = 0x00;
+    public static final byte CODE_POST = 0x02;
+
+    // Content formats
+    public static final short FORMAT_JSON = 50;
+    public static final short FORMAT_CBOR = 60;
+    // No registered number for NDJSON: taken from the experimental range (65000-65535)
+    public static final short FORMAT_NDJSON = (short) 65000;
+
+    // Option numbers
+    private static final short OPTION_URI_HOST = 3;
+    private static final short OPTION_URI_PATH = 11;
+    private static final short OPTION_CONTENT_FORMAT = 12;
+
+    private static final byte VERSION = 0x01;
+    private static final byte PAYLOAD_MARKER = (byte) 0xFF;
+    private static final short HEADER_LENGTH = 4;
+
+    /**
+     * Builds a confirmable POST request into the provided output buffer.
+     *
+     * @param outBuffer Buffer where the message will be written
+     * @param outOffset Starting offset in the output buffer
+     * @param messageId Message ID, also used as a two-byte token
+     * @param host Uri-Host option value, or null to omit it
+     * @param path Request path; each '/' separated segment becomes a Uri-Path option
+     * @param pathLength Length of the path
+     * @param contentFormat Content-Format option value
+     * @param payload Payload buffer
+     * @param payloadOffset Offset of the payload
+     * @param payloadLength Length of the payload
+     * @return New offset after writing the message
+     */
+    public static short buildPost(byte[] outBuffer, short outOffset, short messageId,
+                                  byte[] host, byte[] path, short pathLength, short contentFormat,
+                                  byte[] payload, short payloadOffset, short payloadLength) {
+        // Header: version, type CON, token length 2, code POST, message ID, token
+        outBuffer[outOffset++] = (byte) ((VERSION << 6) | (TYPE_CON << 4) | 2);
+        outBuffer[outOffset++] = CODE_POST;
+        outOffset = Util.setShort(outBuffer, outOffset, messageId);
+        outOffset = Util.setShort(outBuffer, outOffset, messageId);
+
+        short lastOption = 0;
+        if (host != null) {
+            outOffset = addOption(outBuffer, outOffset, (short) (OPTION_URI_HOST - lastOption), host, (short) 0, (short) host.length);
+            lastOption = OPTION_URI_HOST;
+        }
+
+        short start = 0;
+        for (short i = 0; i <= pathLength; i++) {
+            if (i == pathLength || path[i] == '/') {
+                if (i > start) {
+                    outOffset = addOption(outBuffer, outOffset, (short) (OPTION_URI_PATH - lastOption), path, start, (short) (i - start));
+                    lastOption = OPTION_URI_PATH;
+                }
+                start = (short) (i + 1);
+            }
+        }
+
+        // Content-Format is an unsigned integer of one or two bytes
+        if (contentFormat >= 0 && contentFormat <= 0xFF) {
+            outOffset = addOptionHeader(outBuffer, outOffset, (short) (OPTION_CONTENT_FORMAT - lastOption), (short) 1);
+            outBuffer[outOffset++] = (byte) contentFormat;
+        } else {
+            outOffset = addOptionHeader(outBuffer, outOffset, (short) (OPTION_CONTENT_FORMAT - lastOption), (short) 2);
+            outOffset = Util.setShort(outBuffer, outOffset, contentFormat);
+        }
+
+        if (payloadLength > 0) {
+            outBuffer[outOffset++] = PAYLOAD_MARKER;
+            outOffset = Util.arrayCopyNonAtomic(payload, payloadOffset, outBuffer, outOffset, payloadLength);
+        }
+        return outOffset;
+    }
+
+    /**
+     * Returns the length of a POST request built by buildPost() without its payload,
+     * including the payload marker and the longest Content-Format option.
+     *
+     * @param host Uri-Host option value, or null to omit it
+     * @param path Request path
+     * @param pathLength Length of the path
+     * @return Length of the request before the payload
+     */
+    public static short getPostOverhead(byte[] host, byte[] path, short pathLength) {
+        short length = (short) (HEADER_LENGTH + 2);
+        short lastOption = 0;
+        if (host != null) {
+            length += getOptionLength((short) (OPTION_URI_HOST - lastOption), (short) host.length);
+            lastOption = OPTION_URI_HOST;
+        }
+
+        short start = 0;
+        for (short i = 0; i <= pathLength; i++) {
+            if (i == pathLength || path[i] == '/') {
+                if (i > start) {
+                    length += getOptionLength((short) (OPTION_URI_PATH - lastOption), (short) (i - start));
+                    lastOption = OPTION_URI_PATH;
+                }
+                start = (short) (i + 1);
+            }
+        }
+
+        length += getOptionLength((short) (OPTION_CONTENT_FORMAT - lastOption), (short) 2);
+        return (short) (length + 1);
+    }
+
+    /**
+     * Builds an empty ACK for the given message ID.
+     *
+     * @param outBuffer Output buffer
+     * @param outOffset Current offset
+     * @param messageId Message ID being acknowledged
+     * @return New offset after writing
+     */
+    public static short buildEmptyAck(byte[] outBuffer, short outOffset, short messageId) {
+        outBuffer[outOffset++] = (byte) ((VERSION << 6) | (TYPE_ACK << 4));
+        outBuffer[outOffset++] = CODE_EMPTY;
+        return Util.setShort(outBuffer, outOffset, messageId);
+    }
+
+    /**
+     * Returns the message type, or -1 if the buffer does not hold a CoAP message.
+     */
+    public static byte getType(byte[] buffer, short offset, short length) {
+        if (length < HEADER_LENGTH || ((buffer[offset] >> 6) & 0x03) != VERSION) {
+            return -1;
+        }
+        return (byte) ((buffer[offset] >> 4) & 0x03);
+    }
+
+    /**
+     * Returns the message code.
+     */
+    public static byte getCode(byte[] buffer, short offset) {
+        return buffer[(short) (offset + 1)];
+    }
+
+    /**
+     * Returns the message ID.
+     */
+    public static short getMessageId(byte[] buffer, short offset) {
+        return Util.getShort(buffer, (short) (offset + 2));
+    }
+
+    /**
+     * Returns true if the message carries the two-byte token built from the given message ID.
+     */
+    public static boolean hasToken(byte[] buffer, short offset, short length, short token) {
+        return (buffer[offset] & 0x0F) == 2 && length >= (short) (HEADER_LENGTH + 2)
+                && Util.getShort(buffer, (short) (offset + HEADER_LENGTH)) == token;
+    }
+
+    /**
+     * Maps a response code (class.detail) to the equivalent HTTP-style status, e.g. 2.04 to 204.
+     */
+    public static short toStatus(byte code) {
+        return (short) (((code >> 5) & 0x07) * 100 + (code & 0x1F));
+    }
+
+    /**
+     * Finds the payload of a message by skipping the token and options.
+     * Every option is checked against the end of the message: a reserved nibble (15)
+     * or an option running past the end is a format error, handled as no payload.
+     *
+     * @param buffer Buffer containing the message
+     * @param offset Offset of the message
+     * @param length Length of the message
+     * @return Offset of the payload, or offset + length if there is none
+     */
+    public static short findPayload(byte[] buffer, short offset, short length) {
+        short end = (short) (offset + length);
+        short i = (short) (offset + HEADER_LENGTH + (buffer[offset] & 0x0F));
+
+        while (i < end) {
+            byte first = buffer[i++];
+            if (first == PAYLOAD_MARKER) {
+                return i;
+            }
+            short delta = (short) ((first >> 4) & 0x0F);
+            short optionLength = (short) (first & 0x0F);
+            if (delta == 15 || optionLength == 15) {
+                return end;
+            }
+            i += getExtendedSize(delta);
+            short extendedSize = getExtendedSize(optionLength);
+            if ((short) (end - i) < extendedSize) {
+                return end;
+            }
+            if (optionLength == 13) {
+                optionLength = (short) ((buffer[i] & 0xFF) + 13);
+            } else if (optionLength == 14) {
+                short extended = Util.getShort(buffer, i);
+                if (extended < 0 || extended > (short) (end - i)) {
+                    return end;
+                }
+                optionLength = (short) (extended + 269);
+            }
+            i += extendedSize;
+            if (optionLength > (short) (end - i)) {
+                return end;
+            }
+            i += optionLength;
+        }
+        return end;
+    }
+
+    /**
+     * Adds an option (header and value).
+     */
+    private static short addOption(byte[] buffer, short offset, short delta,
+                                   byte[] value, short valueOffset, short valueLength) {
+        offset = addOptionHeader(buffer, offset, delta, valueLength);
+        return Util.arrayCopyNonAtomic(value, valueOffset, buffer, offset, valueLength);
+    }
+
+    /**
+     * Adds an option header with extended delta and length fields when needed.
+     */
+    private static short addOptionHeader(byte[] buffer, short offset, short delta, short length) {
+        short first = offset++;
+        buffer[first] = (byte) ((nibble(delta) << 4) | nibble(length));
+        offset = addExtended(buffer, offset, delta);
+        return addExtended(buffer, offset, length);
+    }
+
+    /**
+     * Returns the length of an option (header and value).
+     */
+    private static short getOptionLength(short delta, short length) {
+        return (short) (1 + getExtendedLength(delta) + getExtendedLength(length) + length);
+    }
+
+    private static short getExtendedLength(short value) {
+        if (value >= 269) {
+            return 2;
+        }
+        return (short) (value >= 13 ? 1 : 0);
+    }
+
+    private static short nibble(short value) {
+        if (value < 13) {
+            return value;
+        }
+        return (short) (value < 269 ? 13 : 14);
+    }
+
+    private static short addExtended(byte[] buffer, short offset, short value) {
+        if (value >= 269) {
+            offset = Util.setShort(buffer, offset, (short) (value - 269));
+        } else if (value >= 13) {
+            buffer[offset++] = (byte) (value - 13);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the number of extended bytes that follow a delta or length nibble.
+     */
+    private static short getExtendedSize(short nibbleValue) {
+        if (nibbleValue == 13) {
+            return 1;
+        }
+        return (short) (nibbleValue == 14 ? 2 : 0);
+    }
+}
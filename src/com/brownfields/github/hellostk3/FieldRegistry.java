@@ -0,0 +1,313 @@
+package com.brownfields.github.hellostk3;
+
+import uicc.access.UICCConstants;
+
+import static uicc.toolkit.ToolkitConstants.*;
+
+/**
+ * FieldRegistry class
+ * <p>
+ * Declares the contents of a report as two descriptor tables, which drive collection,
+ * caching and serialization in UICCInfoProvider and STKHandler.
+ * <p>
+ * A source is a raw value obtained with one command: an EF read, or a PROVIDE LOCAL
+ * INFORMATION qualifier and the tag of its response. It is cached in its raw encoding
+ * until the event that can change it, or for a number of reports (TTL), and is sent
+ * as is in CBOR reports. Delta reports compare the leading bytes of each source
+ * with the last accepted report: the whole value for identities, only the PLMN for
+ * the location, and nothing for radio telemetry, which is sent with every report.
+ * A source that is only defined on some access technologies (the measurements) is
+ * left empty without a command on the others.
+ * <p>
+ * A field is a text value decoded from a part of a source and sent in JSON reports.
+ * Fields that share a source are collected together by one command.
+ * <p>
+ * To add a field, add its source (or reuse one) and its descriptor here, and update
+ * RAW_SIZE and FULL_SIZE.
+ */
+public class FieldRegistry {
+
+    // Source types
+    public static final byte SOURCE_EF = 1;
+    public static final byte SOURCE_LOCAL_INFO = 2;
+
+    // Source flags: the value may be empty (e.g. no location without service), the
+    // value is sent in every report, even if it did not change, and a change of the
+    // value is uploaded at once, whatever the radio conditions
+    public static final byte FLAG_OPTIONAL = 0x01;
+    public static final byte FLAG_ALWAYS_SENT = 0x02;
+    public static final byte FLAG_URGENT = 0x04;
+    // The request carries the UTRAN/E-UTRAN measurement qualifier of the access technology
+    public static final byte FLAG_MEASUREMENT = 0x08;
+
+    // Decoders of the fields
+    public static final byte DECODER_BCD = 1;
+    public static final byte DECODER_BCD_TRIM_F = 2;
+    public static final byte DECODER_BCD_LUHN = 3;
+    public static final byte DECODER_HEX = 4;
+    public static final byte DECODER_DECIMAL = 5;
+    public static final byte DECODER_BIT_FIELD = 6;
+
+    // TTL of a source cached until its event invalidates it, and event of a source
+    // that is only read again once its TTL expired
+    public static final byte TTL_UNTIL_EVENT = 0;
+    public static final short EVENT_NONE = 0;
+
+    // Timing advance tag (ETSI TS 102 223 Clause 8.46)
+    private static final byte TAG_TIMING_ADVANCE = 0x2E;
+
+    // Access technology values (ETSI TS 102 223 Clause 8.61), and masks of access
+    // technologies with bit n set for value n
+    public static final byte ACCESS_TECHNOLOGY_GSM = 0x00;
+    public static final byte ACCESS_TECHNOLOGY_E_UTRAN = 0x08;
+    public static final short ALL_ACCESS_TECHNOLOGIES = (short) -1;
+    private static final short GSM_ONLY = (short) (1 << ACCESS_TECHNOLOGY_GSM);
+    private static final short E_UTRAN_ONLY = (short) (1 << ACCESS_TECHNOLOGY_E_UTRAN);
+
+    // UTRAN/E-UTRAN measurement qualifier tag and E-UTRAN intra-frequency measurements
+    // value (ETSI TS 102 223 Clause 8.73)
+    public static final byte TAG_MEASUREMENT_QUALIFIER = 0x69;
+    private static final byte MEASUREMENT_E_UTRAN_INTRA_FREQUENCY = 0x05;
+
+    // Sources
+    public static final short SOURCE_ICCID = 0;
+    public static final short SOURCE_IMEI = 1;
+    public static final short SOURCE_LOCATION = 2;
+    public static final short SOURCE_NMR = 3;
+    public static final short SOURCE_TIMING_ADVANCE = 4;
+    public static final short SOURCE_ACCESS_TECHNOLOGY = 5;
+    public static final short SOURCE_SEARCH_MODE = 6;
+    public static final short SOURCE_COUNT = 7;
+
+    // Maximum raw length of each source. The location information is the PLMN, the
+    // LAC or TAC and the cell identity (2 bytes, or 4 for UTRAN and E-UTRAN), the
+    // measurement results start with the serving cell (GERAN) or the PCell (E-UTRAN),
+    // and the timing advance is the ME status and the timing advance
+    private static final short ICCID_RAW_LENGTH = 10;
+    private static final short IMEI_RAW_LENGTH = 8;
+    private static final short LOCATION_RAW_LENGTH = 9;
+    private static final short NMR_RAW_LENGTH = 16;
+    private static final short TIMING_ADVANCE_RAW_LENGTH = 2;
+    private static final short ACCESS_TECHNOLOGY_RAW_LENGTH = 1;
+    private static final short SEARCH_MODE_RAW_LENGTH = 1;
+    public static final short RAW_SIZE = (short) (ICCID_RAW_LENGTH + IMEI_RAW_LENGTH + LOCATION_RAW_LENGTH
+            + NMR_RAW_LENGTH + TIMING_ADVANCE_RAW_LENGTH + ACCESS_TECHNOLOGY_RAW_LENGTH + SEARCH_MODE_RAW_LENGTH);
+
+    // Length of the PLMN at the start of the location information
+    private static final short PLMN_LENGTH = 3;
+
+    static final byte[] sourceTypes = {
+            SOURCE_EF, SOURCE_LOCAL_INFO, SOURCE_LOCAL_INFO,
+            SOURCE_LOCAL_INFO, SOURCE_LOCAL_INFO, SOURCE_LOCAL_INFO, SOURCE_LOCAL_INFO
+    };
+    // File identifier, or PROVIDE LOCAL INFORMATION qualifier
+    static final short[] sourceParams = {UICCConstants.FID_EF_ICCID, 0x01, 0x00, 0x02, 0x05, 0x06, 0x09};
+    // Tag of the value in the terminal response or envelope (local information only)
+    static final byte[] sourceTags = {
+            0, TAG_IMEI, TAG_LOCATION_INFORMATION,
+            TAG_NETWORK_MEASUREMENT_RESULTS, TAG_TIMING_ADVANCE, TAG_ACCESS_TECHNOLOGY, TAG_NETWORK_SEARCH_MODE
+    };
+    static final short[] sourceLengths = {
+            ICCID_RAW_LENGTH, IMEI_RAW_LENGTH, LOCATION_RAW_LENGTH,
+            NMR_RAW_LENGTH, TIMING_ADVANCE_RAW_LENGTH, ACCESS_TECHNOLOGY_RAW_LENGTH, SEARCH_MODE_RAW_LENGTH
+    };
+    static final byte[] sourceFlags = {
+            FLAG_ALWAYS_SENT | FLAG_URGENT, FLAG_URGENT, FLAG_OPTIONAL | FLAG_ALWAYS_SENT,
+            FLAG_OPTIONAL | FLAG_ALWAYS_SENT | FLAG_MEASUREMENT, FLAG_OPTIONAL | FLAG_ALWAYS_SENT,
+            FLAG_OPTIONAL | FLAG_ALWAYS_SENT, FLAG_OPTIONAL | FLAG_ALWAYS_SENT
+    };
+    // Event that invalidates the cached value, or updates it from the envelope
+    static final short[] sourceEvents = {
+            EVENT_EXTERNAL_FILE_UPDATE, EVENT_PROFILE_DOWNLOAD, EVENT_EVENT_DOWNLOAD_LOCATION_STATUS,
+            EVENT_NONE, EVENT_NONE,
+            EVENT_EVENT_DOWNLOAD_ACCESS_TECHNOLOGY_CHANGE, EVENT_EVENT_DOWNLOAD_NETWORK_SEARCH_MODE_CHANGE
+    };
+    // Access technologies a source is requested on: the measurement results are decoded
+    // on GERAN and E-UTRAN, and the timing advance is only meaningful on GERAN
+    static final short[] sourceAccessTechnologies = {
+            ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES,
+            (short) (GSM_ONLY | E_UTRAN_ONLY), GSM_ONLY, ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES
+    };
+    // Number of reports a value is reused for, or TTL_UNTIL_EVENT. Measurements are
+    // read again for every report
+    static final byte[] sourceTtls = {TTL_UNTIL_EVENT, TTL_UNTIL_EVENT, TTL_UNTIL_EVENT, 1, 1, TTL_UNTIL_EVENT, TTL_UNTIL_EVENT};
+    // Leading bytes compared to detect a change for delta reports
+    static final short[] sourceDeltaLengths = {ICCID_RAW_LENGTH, IMEI_RAW_LENGTH, PLMN_LENGTH, 0, 0, 0, 0};
+    // CBOR integer keys
+    static final byte[] sourceCborKeys = {1, 2, 3, 4, 5, 6, 7};
+
+    // File list of EF_ICCID for the file update event: one file, path MF/EF_ICCID
+    public static final byte[] ICCID_FILE_LIST = {0x01, 0x3F, 0x00, 0x2F, (byte) 0xE2};
+
+    // Fields
+    public static final short FIELD_ICCID = 0;
+    public static final short FIELD_IMEI = 1;
+    public static final short FIELD_MCC = 2;
+    public static final short FIELD_MNC = 3;
+    public static final short FIELD_LAC = 4;
+    public static final short FIELD_CELL_ID = 5;
+    public static final short FIELD_RXLEV = 6;
+    public static final short FIELD_TIMING_ADVANCE = 7;
+    public static final short FIELD_ACCESS_TECHNOLOGY = 8;
+    public static final short FIELD_SEARCH_MODE = 9;
+    public static final short FIELD_RSRP = 10;
+    public static final short FIELD_COUNT = 11;
+
+    // Maximum decoded length of each field
+    private static final short ICCID_DIGITS = 20;
+    private static final short IMEI_DIGITS = 15;
+    private static final short MCC_DIGITS = 3;
+    private static final short MNC_DIGITS = 2;
+    private static final short LAC_HEX_DIGITS = 4;
+    private static final short CELL_ID_HEX_DIGITS = 8;
+    private static final short BYTE_DIGITS = 3;
+    public static final short FULL_SIZE = (short) (ICCID_DIGITS + IMEI_DIGITS + MCC_DIGITS + MNC_DIGITS
+            + LAC_HEX_DIGITS + CELL_ID_HEX_DIGITS + 5 * BYTE_DIGITS);
+
+    // JSON keys
+    static final byte[] fieldKeys = {
+            'i', 'c', 'c', 'i', 'd',   // 5 bytes
+            'i', 'm', 'e', 'i',        // 4 bytes
+            'm', 'c', 'c',             // 3 bytes
+            'm', 'n', 'c',             // 3 bytes
+            'l', 'a', 'c',             // 3 bytes
+            'c', 'i', 'd',             // 3 bytes
+            'r', 'x', 'l', 'e', 'v',   // 5 bytes
+            't', 'a',                  // 2 bytes
+            'a', 'c', 't',             // 3 bytes
+            'n', 's', 'm',             // 3 bytes
+            'r', 's', 'r', 'p'         // 4 bytes
+    };
+    static final short[] fieldKeyOffsets = {0, 5, 9, 12, 15, 18, 21, 26, 28, 31, 34};
+    static final short[] fieldKeyLengths = {5, 4, 3, 3, 3, 3, 5, 2, 3, 3, 4};
+
+    static final byte[] fieldSources = {
+            (byte) SOURCE_ICCID, (byte) SOURCE_IMEI, (byte) SOURCE_LOCATION, (byte) SOURCE_LOCATION,
+            (byte) SOURCE_LOCATION, (byte) SOURCE_LOCATION, (byte) SOURCE_NMR, (byte) SOURCE_TIMING_ADVANCE,
+            (byte) SOURCE_ACCESS_TECHNOLOGY, (byte) SOURCE_SEARCH_MODE, (byte) SOURCE_NMR
+    };
+    static final byte[] fieldDecoders = {
+            DECODER_BCD_TRIM_F, DECODER_BCD_LUHN, DECODER_BCD, DECODER_BCD,
+            DECODER_HEX, DECODER_HEX, DECODER_DECIMAL, DECODER_DECIMAL,
+            DECODER_DECIMAL, DECODER_DECIMAL, DECODER_BIT_FIELD
+    };
+    // First digit (BCD), byte (hex, decimal) or bit (bit field) of the field in its source.
+    // The IMEI skips the type nibble, MNC digit 3 (PLMN digit 3) is not sent, the timing
+    // advance follows the ME status, and the RSRP of the PCell follows the extension bit,
+    // the presence bit of measResultNeighCells and the 5-bit measId of the E-UTRAN
+    // measResults (3GPP TS 36.331, unaligned PER)
+    static final byte[] fieldFirsts = {0, 1, 0, 4, 3, 5, 0, 1, 0, 0, 7};
+    // Bits of the byte kept by the decimal decoder, or width of a bit field:
+    // RXLEV-FULL-SERVING-CELL is the low 6 bits of the first byte of the GERAN
+    // measurement results (3GPP TS 44.018), and RSRP-Range takes 7 bits
+    static final byte[] fieldBitMasks = {0, 0, 0, 0, 0, 0, 0x3F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7};
+    // Maximum decoded length, including the Luhn check digit
+    static final short[] fieldLengths = {
+            ICCID_DIGITS, IMEI_DIGITS, MCC_DIGITS, MNC_DIGITS,
+            LAC_HEX_DIGITS, CELL_ID_HEX_DIGITS, BYTE_DIGITS, BYTE_DIGITS,
+            BYTE_DIGITS, BYTE_DIGITS, BYTE_DIGITS
+    };
+    // Access technologies a field is decoded on, as its source is encoded differently
+    // on each of them
+    static final short[] fieldAccessTechnologies = {
+            ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES,
+            ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES, GSM_ONLY, ALL_ACCESS_TECHNOLOGIES,
+            ALL_ACCESS_TECHNOLOGIES, ALL_ACCESS_TECHNOLOGIES, E_UTRAN_ONLY
+    };
+
+    /**
+     * Returns the offset of a source in the raw buffer.
+     */
+    public static short getRawOffset(short source) {
+        short offset = 0;
+        for (short i = 0; i < source; i++) {
+            offset += sourceLengths[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset of a field in the decoded buffer.
+     */
+    public static short getFullOffset(short field) {
+        short offset = 0;
+        for (short i = 0; i < field; i++) {
+            offset += fieldLengths[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Returns true if a mask of access technologies includes an access technology.
+     *
+     * @param accessTechnology Access technology value, or -1 if unknown
+     */
+    public static boolean includes(short accessTechnologies, short accessTechnology) {
+        if (accessTechnologies == ALL_ACCESS_TECHNOLOGIES) {
+            return true;
+        }
+        return accessTechnology >= 0 && accessTechnology < 16
+                && (accessTechnologies & (short) (1 << accessTechnology)) != 0;
+    }
+
+    /**
+     * Returns the UTRAN/E-UTRAN measurement qualifier requested on an access technology,
+     * or 0 if none is needed (GERAN).
+     */
+    public static byte getMeasurementQualifier(short accessTechnology) {
+        return accessTechnology == ACCESS_TECHNOLOGY_E_UTRAN ? MEASUREMENT_E_UTRAN_INTRA_FREQUENCY : 0;
+    }
+
+    /**
+     * Returns the sources sent in every report.
+     *
+     * @return Bit i set for source i
+     */
+    public static short getAlwaysSentMask() {
+        return getSourceMask(FLAG_ALWAYS_SENT);
+    }
+
+    /**
+     * Returns the sources whose change is uploaded at once.
+     *
+     * @return Bit i set for source i
+     */
+    public static short getUrgentMask() {
+        return getSourceMask(FLAG_URGENT);
+    }
+
+    /**
+     * Returns the sources with a flag.
+     *
+     * @param flag Source flag (FLAG_*)
+     * @return Bit i set for source i
+     */
+    private static short getSourceMask(byte flag) {
+        short sourceMask = 0;
+        for (short source = 0; source < SOURCE_COUNT; source++) {
+            if ((sourceFlags[source] & flag) != 0) {
+                sourceMask |= (short) (1 << source);
+            }
+        }
+        return sourceMask;
+    }
+
+    /**
+     * Returns the fields decoded from a set of sources.
+     *
+     * @param sourceMask Bit i set for source i
+     * @return Bit i set for field i
+     */
+    public static short getFieldMask(short sourceMask) {
+        if (sourceMask == (short) -1) {
+            return sourceMask;
+        }
+        short fieldMask = 0;
+        for (short field = 0; field < FIELD_COUNT; field++) {
+            if ((sourceMask & (short) (1 << fieldSources[field])) != 0) {
+                fieldMask |= (short) (1 << field);
+            }
+        }
+        return fieldMask;
+    }
+}
@@ -24,12 +24,32 @@ package com.brownfields.github.hellostk3;
  * - EVENT_MENU_SELECTION
  * - EVENT_DOWNLOAD_DATA_AVAILABLE
  * - EVENT_DOWNLOAD_CHANNEL_STATUS
+ * - EVENT_TIMER_EXPIRATION
+ * - EVENT_PROFILE_DOWNLOAD
+ * - EVENT_STATUS_COMMAND
+ * - EVENT_EVENT_DOWNLOAD_LOCATION_STATUS
+ * - EVENT_EVENT_DOWNLOAD_ACCESS_TECHNOLOGY_CHANGE
+ * - EVENT_EVENT_DOWNLOAD_NETWORK_SEARCH_MODE_CHANGE
+ * - EVENT_EXTERNAL_FILE_UPDATE (EF_ICCID)
  *
  * ## Main Features:
  * - Dynamic STK menu entry.
- * - Real-time reading of UICC data fields.
+ * - Real-time reading of UICC data fields, cached in EEPROM until an event invalidates them.
+ * - Radio telemetry: cell identity, measurement results, timing advance, access technology.
  * - Construction and sending of HTTP POST requests through BIP.
- * - JSON payload construction optimized for resource-limited environments.
+ * - Optional keep-alive reuse of the BIP channel, closed by an idle timer.
+ * - Concurrent BIP channels, up to the number supported by the terminal.
+ * - Optional CoAP over UDP transport with confirmable retransmission.
+ * - EEPROM store-and-forward queue for failed reports, uploaded as one batch.
+ * - Optional chunked streaming upload of the queue, without a RAM body buffer.
+ * - Delta reports with only the fields changed since the last accepted report.
+ * - Periodic reporting from a toolkit timer, with random jitter.
+ * - Retry of temporary BIP failures with capped exponential backoff.
+ * - Optional deferral of non-urgent uploads while the serving cell is weak.
+ * - Optional SMS fallback with concatenated 8-bit messages when BIP is unavailable.
+ * - Optional channel pre-warming when the device gets normal service.
+ * - Optional UICC TCP server mode answering collector queries (GET /iccid, /imei, /plmn).
+ * - JSON or CBOR payload construction optimized for resource-limited environments.
  *
  * Author: Rafael Moreno Campos
  * Version: 1.0
@@ -101,6 +121,18 @@ public class HelloSTK3 extends Applet implements ToolkitInterface, ToolkitConsta
         // Set events to be notified to this applet
         toolkitRegistry.setEvent(ToolkitConstants.EVENT_EVENT_DOWNLOAD_DATA_AVAILABLE);
         toolkitRegistry.setEvent(ToolkitConstants.EVENT_EVENT_DOWNLOAD_CHANNEL_STATUS);
+        toolkitRegistry.setEvent(ToolkitConstants.EVENT_PROFILE_DOWNLOAD);
+        // Arms the report timer and prefetches the UICC fields on the first STATUS after installation
+        toolkitRegistry.setEvent(ToolkitConstants.EVENT_STATUS_COMMAND);
+        // Keeps the cached PLMN up to date, and pre-warms or reopens channels
+        toolkitRegistry.setEvent(ToolkitConstants.EVENT_EVENT_DOWNLOAD_LOCATION_STATUS);
+        // Keep the cached radio sources up to date
+        toolkitRegistry.setEvent(ToolkitConstants.EVENT_EVENT_DOWNLOAD_ACCESS_TECHNOLOGY_CHANGE);
+        toolkitRegistry.setEvent(ToolkitConstants.EVENT_EVENT_DOWNLOAD_NETWORK_SEARCH_MODE_CHANGE);
+        // Invalidates the cached ICCID when EF_ICCID is updated or refreshed
+        toolkitRegistry.registerFileEvent(ToolkitConstants.EVENT_EXTERNAL_FILE_UPDATE,
+                FieldRegistry.ICCID_FILE_LIST, (short) 0, (short) FieldRegistry.ICCID_FILE_LIST.length,
+                null, (short) 0, (byte) 0);
 
         // Create transient byte arrays (cleared on card reset)
 
@@ -170,6 +202,34 @@ public class HelloSTK3 extends Applet implements ToolkitInterface, ToolkitConsta
 
         }
 
+        if (event == EVENT_TIMER_EXPIRATION) {
+            EnvelopeHandler eh = EnvelopeHandlerSystem.getTheHandler();
+            stkHandler.processTimerExpiration(eh);
+        }
+
+        if (event == EVENT_EVENT_DOWNLOAD_LOCATION_STATUS) {
+            EnvelopeHandler eh = EnvelopeHandlerSystem.getTheHandler();
+            stkHandler.processLocationStatus(eh);
+        }
+
+        if (event == EVENT_EVENT_DOWNLOAD_ACCESS_TECHNOLOGY_CHANGE
+                || event == EVENT_EVENT_DOWNLOAD_NETWORK_SEARCH_MODE_CHANGE) {
+            EnvelopeHandler eh = EnvelopeHandlerSystem.getTheHandler();
+            stkHandler.processRadioEvent(event, eh);
+        }
+
+        if (event == EVENT_EXTERNAL_FILE_UPDATE) {
+            stkHandler.processFileUpdate();
+        }
+
+        if (event == EVENT_PROFILE_DOWNLOAD) {
+            stkHandler.processProfileDownload();
+        }
+
+        if (event == EVENT_STATUS_COMMAND) {
+            stkHandler.processStatusCommand();
+        }
+
     }
 
 
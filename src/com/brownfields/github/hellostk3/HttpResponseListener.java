@@ -0,0 +1,37 @@
+package com.brownfields.github.hellostk3;
+
+/**
+ * HttpResponseListener interface
+ * <p>
+ * Receives the results of an HTTP response as it is parsed by {@link HttpResponseParser}.
+ */
+public interface HttpResponseListener {
+
+    /**
+     * Called once the status code of a final (non 1xx) response is known.
+     *
+     * @param statusCode HTTP status code
+     */
+    void onStatus(short statusCode);
+
+    /**
+     * Called for every fragment of the response body, in order.
+     * The fragment is only valid for the duration of the call.
+     *
+     * @param buffer Buffer containing the fragment
+     * @param offset Offset of the fragment
+     * @param length Length of the fragment
+     */
+    void onBody(byte[] buffer, short offset, short length);
+
+    /**
+     * Called when the whole response has been received.
+     */
+    void onComplete();
+
+    /**
+     * Called when a request ends without a final response: the connection was closed
+     * before the status line, or the CoAP exchange was reset or timed out.
+     */
+    void onFailure();
+}
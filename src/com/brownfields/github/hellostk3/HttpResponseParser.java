@@ -0,0 +1,423 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.JCSystem;
+
+/**
+ * HttpResponseParser class
+ * <p>
+ * Incremental HTTP/1.1 response parser. Each RECEIVE DATA chunk is consumed in place,
+ * and the parser state is kept in a small transient array so that a response can span
+ * several EVENT_DOWNLOAD_DATA_AVAILABLE envelopes. Responses of any size are handled
+ * in constant RAM.
+ * <p>
+ * Supported body framing: Content-Length, chunked transfer encoding, and read until
+ * the connection is closed. Lengths that do not fit in a short fall back to reading
+ * until the connection is closed.
+ */
+public class HttpResponseParser {
+
+    // Parser states
+    private static final short S_STATUS_VERSION = 0;
+    private static final short S_STATUS_CODE = 1;
+    private static final short S_STATUS_REASON = 2;
+    private static final short S_HEADER_NAME = 3;
+    private static final short S_HEADER_VALUE = 4;
+    private static final short S_HEADER_SKIP = 5;
+    private static final short S_HEADERS_END = 6;
+    private static final short S_BODY_LENGTH = 7;
+    private static final short S_BODY_UNTIL_CLOSE = 8;
+    private static final short S_CHUNK_SIZE = 9;
+    private static final short S_CHUNK_EXTENSION = 10;
+    private static final short S_CHUNK_DATA = 11;
+    private static final short S_CHUNK_DATA_END = 12;
+    private static final short S_TRAILER = 13;
+    private static final short S_DONE = 14;
+
+    // Indexes in the transient state array
+    private static final short IDX_STATE = 0;
+    private static final short IDX_STATUS = 1;
+    private static final short IDX_MATCH = 2;     // Position in the header name or value being matched
+    private static final short IDX_HEADER = 3;    // Candidate headers while reading a header name
+    private static final short IDX_REMAINING = 4; // Bytes left in the body or current chunk
+    private static final short IDX_FLAGS = 5;
+
+    // Header candidates
+    private static final short HDR_CONTENT_LENGTH = 0x01;
+    private static final short HDR_TRANSFER_ENCODING = 0x02;
+
+    // Framing flags
+    private static final short FLAG_LENGTH = 0x01;
+    private static final short FLAG_CHUNKED = 0x02;
+    private static final short FLAG_OVERFLOW = 0x04;
+
+    // Lower-case header names and values recognized by the parser
+    private static final byte[] contentLengthName = {'c', 'o', 'n', 't', 'e', 'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h'};
+    private static final byte[] transferEncodingName = {'t', 'r', 'a', 'n', 's', 'f', 'e', 'r', '-', 'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g'};
+    private static final byte[] chunkedValue = {'c', 'h', 'u', 'n', 'k', 'e', 'd'};
+
+    private short[] state;
+    private HttpResponseListener listener;
+
+    /**
+     * Constructor
+     */
+    public HttpResponseParser() {
+        state = JCSystem.makeTransientShortArray((short) 6, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Sets the listener notified of status, body fragments and completion.
+     *
+     * @param listener Response listener
+     */
+    public void setListener(HttpResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Prepares the parser for a new response.
+     */
+    public void reset() {
+        state[IDX_STATE] = S_STATUS_VERSION;
+        state[IDX_STATUS] = 0;
+        state[IDX_MATCH] = 0;
+        state[IDX_HEADER] = 0;
+        state[IDX_REMAINING] = 0;
+        state[IDX_FLAGS] = 0;
+    }
+
+    /**
+     * Returns true once the status code has been parsed.
+     */
+    public boolean hasStatus() {
+        return state[IDX_STATE] > S_STATUS_CODE;
+    }
+
+    /**
+     * Returns true once the whole response has been parsed.
+     */
+    public boolean isComplete() {
+        return state[IDX_STATE] == S_DONE;
+    }
+
+    /**
+     * Returns the parsed status code, or 0 if not yet known.
+     */
+    public short getStatus() {
+        return hasStatus() ? state[IDX_STATUS] : 0;
+    }
+
+    /**
+     * Notifies the parser that the connection was closed.
+     *
+     * @return True if the response is complete
+     */
+    public boolean finish() {
+        if (state[IDX_STATE] == S_BODY_UNTIL_CLOSE) {
+            complete();
+        }
+        return isComplete();
+    }
+
+    /**
+     * Consumes a fragment of the response.
+     *
+     * @param buffer Buffer containing the received data
+     * @param offset Offset of the data
+     * @param length Length of the data
+     */
+    public void consume(byte[] buffer, short offset, short length) {
+        short end = (short) (offset + length);
+        short i = offset;
+
+        while (i < end) {
+            short current = state[IDX_STATE];
+            if (current == S_DONE) {
+                return;
+            }
+
+            if (current == S_BODY_LENGTH || current == S_CHUNK_DATA || current == S_BODY_UNTIL_CLOSE) {
+                short count = (short) (end - i);
+                if (current != S_BODY_UNTIL_CLOSE && count > state[IDX_REMAINING]) {
+                    count = state[IDX_REMAINING];
+                }
+                if (listener != null) {
+                    listener.onBody(buffer, i, count);
+                }
+                i += count;
+
+                if (current != S_BODY_UNTIL_CLOSE) {
+                    state[IDX_REMAINING] -= count;
+                    if (state[IDX_REMAINING] == 0) {
+                        if (current == S_BODY_LENGTH) {
+                            complete();
+                        } else {
+                            state[IDX_STATE] = S_CHUNK_DATA_END;
+                        }
+                    }
+                }
+                continue;
+            }
+
+            parseByte(buffer[i]);
+            i++;
+        }
+    }
+
+    /**
+     * Advances the state machine by one byte of the status line, headers or chunk framing.
+     */
+    private void parseByte(byte c) {
+        switch (state[IDX_STATE]) {
+            case S_STATUS_VERSION:
+                if (c == ' ') {
+                    state[IDX_STATE] = S_STATUS_CODE;
+                    state[IDX_STATUS] = 0;
+                    state[IDX_MATCH] = 0;
+                }
+                break;
+
+            case S_STATUS_CODE:
+                if (c >= '0' && c <= '9') {
+                    state[IDX_STATUS] = (short) (state[IDX_STATUS] * 10 + (c - '0'));
+                    state[IDX_MATCH]++;
+                    if (state[IDX_MATCH] == 3) {
+                        state[IDX_STATE] = S_STATUS_REASON;
+                        if (state[IDX_STATUS] >= 200 && listener != null) {
+                            listener.onStatus(state[IDX_STATUS]);
+                        }
+                    }
+                }
+                break;
+
+            case S_STATUS_REASON:
+            case S_HEADER_SKIP:
+                if (c == '\n') {
+                    startHeaderLine();
+                }
+                break;
+
+            case S_HEADER_NAME:
+                parseHeaderName(c);
+                break;
+
+            case S_HEADER_VALUE:
+                parseHeaderValue(c);
+                break;
+
+            case S_HEADERS_END:
+                if (c == '\n') {
+                    startBody();
+                }
+                break;
+
+            case S_CHUNK_SIZE:
+                parseChunkSize(c);
+                break;
+
+            case S_CHUNK_EXTENSION:
+                if (c == '\n') {
+                    endChunkSize();
+                }
+                break;
+
+            case S_CHUNK_DATA_END:
+                if (c == '\n') {
+                    state[IDX_STATE] = S_CHUNK_SIZE;
+                    state[IDX_REMAINING] = 0;
+                }
+                break;
+
+            case S_TRAILER:
+                if (c == '\n') {
+                    if (state[IDX_MATCH] == 0) {
+                        complete();
+                    } else {
+                        state[IDX_MATCH] = 0;
+                    }
+                } else if (c != '\r') {
+                    state[IDX_MATCH]++;
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Matches a header name against the recognized headers.
+     */
+    private void parseHeaderName(byte c) {
+        short position = state[IDX_MATCH];
+
+        if (position == 0 && (c == '\r' || c == '\n')) {
+            if (c == '\r') {
+                state[IDX_STATE] = S_HEADERS_END;
+            } else {
+                startBody();
+            }
+            return;
+        }
+
+        if (c == ':') {
+            short candidates = state[IDX_HEADER];
+            state[IDX_MATCH] = 0;
+            if ((candidates & HDR_CONTENT_LENGTH) != 0 && position == (short) contentLengthName.length) {
+                state[IDX_HEADER] = HDR_CONTENT_LENGTH;
+                state[IDX_REMAINING] = 0;
+                state[IDX_FLAGS] |= FLAG_LENGTH;
+                state[IDX_STATE] = S_HEADER_VALUE;
+            } else if ((candidates & HDR_TRANSFER_ENCODING) != 0 && position == (short) transferEncodingName.length) {
+                state[IDX_HEADER] = HDR_TRANSFER_ENCODING;
+                state[IDX_STATE] = S_HEADER_VALUE;
+            } else {
+                state[IDX_STATE] = S_HEADER_SKIP;
+            }
+            return;
+        }
+
+        c = toLowerCase(c);
+        short candidates = state[IDX_HEADER];
+        if (position >= (short) contentLengthName.length || contentLengthName[position] != c) {
+            candidates &= ~HDR_CONTENT_LENGTH;
+        }
+        if (position >= (short) transferEncodingName.length || transferEncodingName[position] != c) {
+            candidates &= ~HDR_TRANSFER_ENCODING;
+        }
+        state[IDX_HEADER] = candidates;
+        state[IDX_MATCH] = (short) (position + 1);
+        if (candidates == 0) {
+            state[IDX_STATE] = S_HEADER_SKIP;
+        }
+    }
+
+    /**
+     * Parses the value of a recognized header.
+     */
+    private void parseHeaderValue(byte c) {
+        if (c == '\n') {
+            startHeaderLine();
+            return;
+        }
+
+        if (state[IDX_HEADER] == HDR_CONTENT_LENGTH) {
+            if (c >= '0' && c <= '9') {
+                short digit = (short) (c - '0');
+                short value = state[IDX_REMAINING];
+                if (value > (short) 3276 || (value == (short) 3276 && digit > 7)) {
+                    state[IDX_FLAGS] |= FLAG_OVERFLOW;
+                } else {
+                    state[IDX_REMAINING] = (short) (value * 10 + digit);
+                }
+            }
+        } else {
+            short position = state[IDX_MATCH];
+            c = toLowerCase(c);
+            if (position < (short) chunkedValue.length && chunkedValue[position] == c) {
+                position++;
+                if (position == (short) chunkedValue.length) {
+                    state[IDX_FLAGS] |= FLAG_CHUNKED;
+                }
+            } else {
+                position = (short) (c == chunkedValue[0] ? 1 : 0);
+            }
+            state[IDX_MATCH] = position;
+        }
+    }
+
+    /**
+     * Parses the hexadecimal size of a chunk.
+     */
+    private void parseChunkSize(byte c) {
+        short digit = -1;
+        if (c >= '0' && c <= '9') {
+            digit = (short) (c - '0');
+        } else {
+            c = toLowerCase(c);
+            if (c >= 'a' && c <= 'f') {
+                digit = (short) (c - 'a' + 10);
+            }
+        }
+
+        if (digit >= 0) {
+            short value = state[IDX_REMAINING];
+            if (value > (short) 0x07FF) {
+                state[IDX_FLAGS] |= FLAG_OVERFLOW;
+            } else {
+                state[IDX_REMAINING] = (short) ((value << 4) | digit);
+            }
+        } else if (c == ';') {
+            state[IDX_STATE] = S_CHUNK_EXTENSION;
+        } else if (c == '\n') {
+            endChunkSize();
+        }
+    }
+
+    /**
+     * Called at the end of a chunk size line.
+     */
+    private void endChunkSize() {
+        if ((state[IDX_FLAGS] & FLAG_OVERFLOW) != 0) {
+            state[IDX_STATE] = S_BODY_UNTIL_CLOSE;
+        } else if (state[IDX_REMAINING] == 0) {
+            state[IDX_STATE] = S_TRAILER;
+            state[IDX_MATCH] = 0;
+        } else {
+            state[IDX_STATE] = S_CHUNK_DATA;
+        }
+    }
+
+    /**
+     * Starts parsing a new header line.
+     */
+    private void startHeaderLine() {
+        state[IDX_STATE] = S_HEADER_NAME;
+        state[IDX_MATCH] = 0;
+        state[IDX_HEADER] = (short) (HDR_CONTENT_LENGTH | HDR_TRANSFER_ENCODING);
+    }
+
+    /**
+     * Chooses the body framing once all headers are received.
+     */
+    private void startBody() {
+        short status = state[IDX_STATUS];
+        short flags = state[IDX_FLAGS];
+
+        if (status < 200) {
+            // Informational response: the final response follows
+            reset();
+        } else if (status == 204 || status == 304) {
+            complete();
+        } else if ((flags & FLAG_CHUNKED) != 0) {
+            state[IDX_FLAGS] = (short) (flags & ~FLAG_OVERFLOW);
+            state[IDX_REMAINING] = 0;
+            state[IDX_STATE] = S_CHUNK_SIZE;
+        } else if ((flags & FLAG_LENGTH) != 0 && (flags & FLAG_OVERFLOW) == 0) {
+            if (state[IDX_REMAINING] == 0) {
+                complete();
+            } else {
+                state[IDX_STATE] = S_BODY_LENGTH;
+            }
+        } else {
+            state[IDX_STATE] = S_BODY_UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * Marks the response as complete and notifies the listener.
+     */
+    private void complete() {
+        state[IDX_STATE] = S_DONE;
+        if (listener != null) {
+            listener.onComplete();
+        }
+    }
+
+    private static byte toLowerCase(byte c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (byte) (c + 32);
+        }
+        return c;
+    }
+}
@@ -31,18 +31,38 @@ public class JsonUtil {
     public static short buildJson(byte[] flatKeys, short[] keyOffsets, short[] keyLengths,
                                   byte[] flatValues, short[] valueOffsets, short[] valueLengths,
                                   byte[] outBuffer, short outOffset) {
+        return buildJson(flatKeys, keyOffsets, keyLengths,
+                flatValues, valueOffsets, valueLengths,
+                (short) -1, outBuffer, outOffset);
+    }
+
+    /**
+     * Builds a JSON object with only the selected entries into the provided output buffer.
+     *
+     * @param fieldMask Bit i set to include entry i
+     * @param outBuffer Buffer where the JSON object will be written
+     * @param outOffset Starting offset in the output buffer
+     * @return New offset after writing the JSON
+     */
+    public static short buildJson(byte[] flatKeys, short[] keyOffsets, short[] keyLengths,
+                                  byte[] flatValues, short[] valueOffsets, short[] valueLengths,
+                                  short fieldMask, byte[] outBuffer, short outOffset) {
         outOffset = startObject(outBuffer, outOffset);
 
+        boolean first = true;
         for (short i = 0; i < keyOffsets.length; i++) {
+            if ((fieldMask & (short) (1 << i)) == 0) {
+                continue;
+            }
+            if (!first) {
+                outOffset = addComma(outBuffer, outOffset);
+            }
             outOffset = addKeyValue(
                     outBuffer, outOffset,
                     flatKeys, keyOffsets[i], keyLengths[i],
                     flatValues, valueOffsets[i], valueLengths[i]
             );
-
-            if (i != (short)(keyOffsets.length - 1)) {
-                outOffset = addComma(outBuffer, outOffset);
-            }
+            first = false;
         }
 
         outOffset = endObject(outBuffer, outOffset);
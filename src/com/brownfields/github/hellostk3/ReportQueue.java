@@ -0,0 +1,304 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * ReportQueue class
+ * <p>
+ * Persistent store-and-forward queue for reports that could not be uploaded.
+ * Reports are kept in fixed-size EEPROM slots and drained as one batched body.
+ * <p>
+ * Slot layout: sequence number (2 bytes), format (1 byte), length (1 byte), payload.
+ * The sequence number is written last with an atomic copy and acts as the commit
+ * marker: a slot whose sequence number is 0 is empty. There are no head/tail
+ * counters in EEPROM; the ring position is recovered by scanning the sequence
+ * numbers, and new reports always go to the slot after the newest one, so writes
+ * rotate evenly over all slots.
+ */
+public class ReportQueue {
+
+    private static final short SLOT_COUNT = 8;
+    private static final short SLOT_SIZE = 192;
+    private static final short HEADER_SIZE = 4;
+    private static final short MAX_PAYLOAD = (short) (SLOT_SIZE - HEADER_SIZE);
+
+    private static final short OFFSET_FORMAT = 2;
+    private static final short OFFSET_LENGTH = 3;
+
+    // Persistent slots
+    private final byte[] slots;
+
+    // Transient queue state, recovered from the slots after reset
+    private final short[] queueState;
+    private static final short IDX_RECOVERED = 0;
+    private static final short IDX_NEXT_SEQ = 1;
+    private static final short IDX_NEWEST_SLOT = 2;
+    private static final short IDX_IN_FLIGHT = 3;
+
+    // Source of the atomic sequence number write
+    private final byte[] markerBuffer;
+
+    // Framing bytes of a streamed batch: start, before a record, after a record, end
+    private final byte[] frameBuffer;
+    private static final short FRAME_BEGIN = 0;
+    private static final short FRAME_PREFIX = 1;
+    private static final short FRAME_SUFFIX = 2;
+    private static final short FRAME_END = 3;
+
+    /**
+     * Constructor
+     */
+    public ReportQueue() {
+        slots = new byte[(short) (SLOT_COUNT * SLOT_SIZE)];
+        queueState = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_RESET);
+        markerBuffer = JCSystem.makeTransientByteArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        frameBuffer = JCSystem.makeTransientByteArray((short) 4, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Stores a report. When the queue is full the oldest report is overwritten.
+     *
+     * @param buffer Buffer containing the report
+     * @param offset Offset of the report
+     * @param length Length of the report
+     * @param format Report format (CoapUtil.FORMAT_*)
+     * @return False if the report does not fit in a slot
+     */
+    public boolean enqueue(byte[] buffer, short offset, short length, short format) {
+        if (length > MAX_PAYLOAD) {
+            return false;
+        }
+        recover();
+
+        short slot = (short) ((short) (queueState[IDX_NEWEST_SLOT] + 1) % SLOT_COUNT);
+        short base = (short) (slot * SLOT_SIZE);
+
+        // Invalidate the slot first, it may hold the oldest report
+        if (Util.getShort(slots, base) != 0) {
+            writeSequence(base, (short) 0);
+        }
+        queueState[IDX_IN_FLIGHT] &= (short) ~((short) (1 << slot));
+
+        slots[(short) (base + OFFSET_FORMAT)] = (byte) format;
+        slots[(short) (base + OFFSET_LENGTH)] = (byte) length;
+        Util.arrayCopyNonAtomic(buffer, offset, slots, (short) (base + HEADER_SIZE), length);
+
+        short sequence = queueState[IDX_NEXT_SEQ];
+        writeSequence(base, sequence);
+
+        sequence++;
+        if (sequence == 0) {
+            sequence = 1;
+        }
+        queueState[IDX_NEXT_SEQ] = sequence;
+        queueState[IDX_NEWEST_SLOT] = slot;
+        return true;
+    }
+
+    /**
+     * Returns the number of reports the queue can hold.
+     */
+    public short getCapacity() {
+        return SLOT_COUNT;
+    }
+
+    /**
+     * Marks the newest report as in flight, when it is uploaded on its own.
+     */
+    public void markNewestInFlight() {
+        queueState[IDX_IN_FLIGHT] = (short) (1 << queueState[IDX_NEWEST_SLOT]);
+    }
+
+    /**
+     * Returns true if no report is queued.
+     */
+    public boolean isEmpty() {
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            if (Util.getShort(slots, (short) (slot * SLOT_SIZE)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of queued reports.
+     */
+    public short count() {
+        short count = 0;
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            if (Util.getShort(slots, (short) (slot * SLOT_SIZE)) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds one batched body with the queued reports of the given format, oldest first.
+     * The included reports are marked as in flight until released. Reports of another
+     * format are dropped.
+     *
+     * @param format Report format (CoapUtil.FORMAT_*)
+     * @param framing Batch framing (BatchUtil.FRAMING_*)
+     * @param outBuffer Buffer where the batch will be written
+     * @param outOffset Starting offset in the output buffer
+     * @param maxLength Maximum length of the batch
+     * @return New offset after writing, or outOffset if no report was included
+     */
+    public short buildBatch(short format, byte framing, byte[] outBuffer, short outOffset, short maxLength) {
+        recover();
+        dropOtherFormats(format);
+        short start = outOffset;
+        short end = (short) (outOffset + maxLength - BatchUtil.recordOverhead(framing));
+        short count = 0;
+        short inFlight = 0;
+
+        outOffset = BatchUtil.begin(framing, outBuffer, outOffset);
+        short slot = queueState[IDX_NEWEST_SLOT];
+        for (short i = 0; i < SLOT_COUNT; i++) {
+            slot = (short) ((short) (slot + 1) % SLOT_COUNT);
+            short base = (short) (slot * SLOT_SIZE);
+            if (Util.getShort(slots, base) == 0 || slots[(short) (base + OFFSET_FORMAT)] != (byte) format) {
+                continue;
+            }
+            short length = (short) (slots[(short) (base + OFFSET_LENGTH)] & 0xFF);
+            if ((short) (outOffset + length) > end || count == BatchUtil.MAX_CBOR_RECORDS) {
+                break;
+            }
+            outOffset = BatchUtil.append(framing, count, slots, (short) (base + HEADER_SIZE), length, outBuffer, outOffset);
+            inFlight |= (short) (1 << slot);
+            count++;
+        }
+
+        queueState[IDX_IN_FLIGHT] = inFlight;
+        if (count == 0) {
+            return start;
+        }
+        return BatchUtil.end(framing, count, outBuffer, start, outOffset);
+    }
+
+    /**
+     * Streams all queued reports of the given format, oldest first, as the body of a
+     * started chunked request. Each report is sent straight from its slot with its
+     * framing, so the batch is not limited by a RAM buffer. The included reports are
+     * marked as in flight until released. Reports of another format are dropped.
+     *
+     * @param format Report format (CoapUtil.FORMAT_*)
+     * @param framing Batch framing (BatchUtil.FRAMING_*)
+     * @param stream BIP manager with a started stream (BIPManager.beginHTTPStream())
+     * @return False if the stream failed
+     */
+    public boolean streamBatch(short format, byte framing, BIPManager stream) {
+        recover();
+        dropOtherFormats(format);
+        short count = 0;
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            short base = (short) (slot * SLOT_SIZE);
+            if (Util.getShort(slots, base) != 0 && slots[(short) (base + OFFSET_FORMAT)] == (byte) format) {
+                count++;
+            }
+        }
+        queueState[IDX_IN_FLIGHT] = 0;
+
+        stream.addStreamData(frameBuffer, FRAME_BEGIN,
+                (short) (BatchUtil.begin(framing, count, frameBuffer, FRAME_BEGIN) - FRAME_BEGIN));
+        short index = 0;
+        short inFlight = 0;
+        short slot = queueState[IDX_NEWEST_SLOT];
+        for (short i = 0; i < SLOT_COUNT; i++) {
+            slot = (short) ((short) (slot + 1) % SLOT_COUNT);
+            short base = (short) (slot * SLOT_SIZE);
+            if (Util.getShort(slots, base) == 0 || slots[(short) (base + OFFSET_FORMAT)] != (byte) format) {
+                continue;
+            }
+            short length = (short) (slots[(short) (base + OFFSET_LENGTH)] & 0xFF);
+            short prefixLength = (short) (BatchUtil.prefix(framing, index, frameBuffer, FRAME_PREFIX) - FRAME_PREFIX);
+            short suffixLength = (short) (BatchUtil.suffix(framing, frameBuffer, FRAME_SUFFIX) - FRAME_SUFFIX);
+            stream.addStreamData(frameBuffer, FRAME_PREFIX, prefixLength);
+            stream.addStreamData(slots, (short) (base + HEADER_SIZE), length);
+            stream.addStreamData(frameBuffer, FRAME_SUFFIX, suffixLength);
+            if (!stream.sendStreamChunk()) {
+                return false;
+            }
+            inFlight |= (short) (1 << slot);
+            index++;
+        }
+
+        stream.addStreamData(frameBuffer, FRAME_END,
+                (short) (BatchUtil.end(framing, count, frameBuffer, (short) -1, FRAME_END) - FRAME_END));
+        if (!stream.endHTTPStream()) {
+            return false;
+        }
+        queueState[IDX_IN_FLIGHT] = inFlight;
+        return true;
+    }
+
+    /**
+     * Removes the reports of the last batch once the server has accepted it.
+     */
+    public void releaseInFlight() {
+        short inFlight = queueState[IDX_IN_FLIGHT];
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            if ((inFlight & (short) (1 << slot)) != 0) {
+                writeSequence((short) (slot * SLOT_SIZE), (short) 0);
+            }
+        }
+        queueState[IDX_IN_FLIGHT] = 0;
+    }
+
+    /**
+     * Keeps the reports of the last batch queued after a failed upload.
+     */
+    public void cancelInFlight() {
+        queueState[IDX_IN_FLIGHT] = 0;
+    }
+
+    /**
+     * Drops the reports queued in another format, e.g. before a change of the report
+     * format: they cannot be sent in the same batch and would never be uploaded.
+     */
+    private void dropOtherFormats(short format) {
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            short base = (short) (slot * SLOT_SIZE);
+            if (Util.getShort(slots, base) != 0 && slots[(short) (base + OFFSET_FORMAT)] != (byte) format) {
+                writeSequence(base, (short) 0);
+            }
+        }
+    }
+
+    /**
+     * Finds the newest slot and the next sequence number after a reset.
+     */
+    private void recover() {
+        if (queueState[IDX_RECOVERED] != 0) {
+            return;
+        }
+        short newestSlot = (short) (SLOT_COUNT - 1);
+        short newestSequence = 0;
+        for (short slot = 0; slot < SLOT_COUNT; slot++) {
+            short sequence = Util.getShort(slots, (short) (slot * SLOT_SIZE));
+            if (sequence != 0 && (newestSequence == 0 || (short) (sequence - newestSequence) > 0)) {
+                newestSequence = sequence;
+                newestSlot = slot;
+            }
+        }
+
+        newestSequence++;
+        if (newestSequence == 0) {
+            newestSequence = 1;
+        }
+        queueState[IDX_NEXT_SEQ] = newestSequence;
+        queueState[IDX_NEWEST_SLOT] = newestSlot;
+        queueState[IDX_RECOVERED] = 1;
+    }
+
+    /**
+     * Writes the sequence number (commit marker) of a slot atomically.
+     */
+    private void writeSequence(short base, short sequence) {
+        Util.setShort(markerBuffer, (short) 0, sequence);
+        Util.arrayCopy(markerBuffer, (short) 0, slots, base, (short) 2);
+    }
+}
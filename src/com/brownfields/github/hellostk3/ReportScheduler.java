@@ -0,0 +1,179 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.RandomData;
+import uicc.toolkit.ToolkitRegistrySystem;
+
+import static uicc.toolkit.ToolkitConstants.*;
+
+/**
+ * ReportScheduler class
+ * <p>
+ * Triggers periodic reports from a toolkit timer.
+ * <p>
+ * Toolkit timers do not survive a reset and cannot be started during installation,
+ * so the timer is armed on the first EVENT_STATUS_COMMAND after a profile download.
+ * The caller releases the STATUS event once it needs no further STATUS events
+ * (see STKHandler.processStatusCommand()). The first expiration is spread
+ * randomly over a whole interval and every following one is delayed by a random
+ * jitter, so that a fleet of cards does not report in lockstep.
+ * <p>
+ * The same timer drives retries after a temporary failure: the delay doubles on
+ * every attempt up to a maximum, and half of it is randomized ("equal jitter").
+ * The periodic schedule resumes once the retry succeeds or the attempts run out.
+ */
+public class ReportScheduler {
+
+    private final byte timerId;
+    private final short interval;
+    private final short jitter;
+
+    private final RandomData random;
+    private final byte[] randomBuffer;
+
+    // Transient flag, the timer is stopped by a reset
+    private final boolean[] armed;
+
+    // Retry attempts made so far, 0 when no retry is pending
+    private final short[] retryAttempts;
+    private short retryBaseDelay;
+    private short retryMaxDelay;
+    private short retryMaxAttempts;
+
+    // Actions requested by a timer expiration
+    public static final byte ACTION_NONE = 0;
+    public static final byte ACTION_REPORT = 1;
+    public static final byte ACTION_RETRY = 2;
+
+    /**
+     * Constructor
+     *
+     * @param interval Reporting interval in seconds (at most 32767), 0 for retries only
+     * @param jitter Maximum random delay added to each interval, in seconds
+     */
+    public ReportScheduler(short interval, short jitter) {
+        this.interval = interval;
+        this.jitter = jitter;
+
+        // Allocating a timer also registers EVENT_TIMER_EXPIRATION
+        timerId = ToolkitRegistrySystem.getEntry().allocateTimer();
+
+        random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+        randomBuffer = JCSystem.makeTransientByteArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        armed = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        retryAttempts = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Configures the retry backoff.
+     *
+     * @param baseDelay Delay before the first retry, in seconds
+     * @param maxDelay Maximum delay between retries, in seconds
+     * @param maxAttempts Number of retries before waiting for the next period
+     */
+    public void setRetryPolicy(short baseDelay, short maxDelay, short maxAttempts) {
+        retryBaseDelay = baseDelay;
+        retryMaxDelay = maxDelay;
+        retryMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Handles EVENT_PROFILE_DOWNLOAD: requests a STATUS event to arm the timer.
+     */
+    public void processProfileDownload() {
+        ToolkitRegistrySystem.getEntry().setEvent(EVENT_STATUS_COMMAND);
+    }
+
+    /**
+     * Handles EVENT_STATUS_COMMAND: arms the timer with a random initial delay.
+     */
+    public void processStatusCommand() {
+        if (!armed[0] && interval > 0) {
+            TimerUtil.start(timerId, (short) (randomDelay(interval) + 1));
+            armed[0] = true;
+        }
+    }
+
+    /**
+     * Handles EVENT_TIMER_EXPIRATION.
+     * <p>
+     * For a periodic expiration the next period is started and a report is due.
+     * For a retry expiration the caller must retry the upload and then call either
+     * scheduleRetry() or endRetry(), which re-arm the timer.
+     *
+     * @param timerId Identifier of the expired timer
+     * @return Action requested from the caller (ACTION_*)
+     */
+    public byte processTimerExpiration(byte timerId) {
+        if (timerId != this.timerId) {
+            return ACTION_NONE;
+        }
+        if (retryAttempts[0] != 0) {
+            return ACTION_RETRY;
+        }
+        startPeriod();
+        return ACTION_REPORT;
+    }
+
+    /**
+     * Schedules a retry after a temporary failure, with capped exponential backoff.
+     * Once the maximum number of attempts is reached the periodic schedule resumes.
+     *
+     * @return True if a retry was scheduled
+     */
+    public boolean scheduleRetry() {
+        short attempt = retryAttempts[0];
+        if (attempt >= retryMaxAttempts) {
+            endRetry();
+            return false;
+        }
+
+        short delay = retryBaseDelay;
+        for (short i = 0; i < attempt && delay < retryMaxDelay; i++) {
+            delay = delay > (short) (retryMaxDelay / 2) ? retryMaxDelay : (short) (delay * 2);
+        }
+        if (delay > retryMaxDelay) {
+            delay = retryMaxDelay;
+        }
+
+        short half = (short) (delay / 2);
+        TimerUtil.start(timerId, (short) (delay - half + randomDelay((short) (half + 1))));
+        retryAttempts[0] = (short) (attempt + 1);
+        armed[0] = true;
+        return true;
+    }
+
+    /**
+     * Ends a pending retry and resumes the periodic schedule.
+     */
+    public void endRetry() {
+        if (retryAttempts[0] != 0) {
+            retryAttempts[0] = 0;
+            startPeriod();
+        }
+    }
+
+    /**
+     * Starts the next reporting period, unless periodic reporting is disabled.
+     */
+    private void startPeriod() {
+        if (interval == 0) {
+            armed[0] = false;
+            return;
+        }
+        TimerUtil.start(timerId, (short) (interval + randomDelay((short) (jitter + 1))));
+        armed[0] = true;
+    }
+
+    /**
+     * Returns a random delay between 0 and range - 1 seconds.
+     */
+    private short randomDelay(short range) {
+        if (range <= 0) {
+            return 0;
+        }
+        random.generateData(randomBuffer, (short) 0, (short) 2);
+        return (short) ((short) (Util.getShort(randomBuffer, (short) 0) & 0x7FFF) % range);
+    }
+}
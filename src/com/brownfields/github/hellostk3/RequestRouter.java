@@ -0,0 +1,62 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.Util;
+
+/**
+ * RequestRouter class
+ * <p>
+ * Maps the paths of requests received in UICC server mode to the fields they query.
+ * Each route selects a set of report fields by a mask over the FieldRegistry fields.
+ */
+public class RequestRouter {
+
+    public static final short ROUTE_NONE = -1;
+
+    private static final byte[] routes = {
+            '/',                        // all fields
+            '/', 'i', 'c', 'c', 'i', 'd',
+            '/', 'i', 'm', 'e', 'i',
+            '/', 'p', 'l', 'm', 'n'
+    };
+    private static final short[] routeOffsets = {0, 1, 7, 12};
+    private static final short[] routeLengths = {1, 6, 5, 5};
+
+    // Fields returned by each route
+    private static final short[] routeMasks = {
+            (short) -1,
+            (short) (1 << FieldRegistry.FIELD_ICCID),
+            (short) (1 << FieldRegistry.FIELD_IMEI),
+            (short) ((1 << FieldRegistry.FIELD_MCC) | (1 << FieldRegistry.FIELD_MNC))
+    };
+
+    /**
+     * Finds the route of a request path. A query string is ignored.
+     *
+     * @param buffer Buffer containing the path
+     * @param offset Offset of the path
+     * @param length Length of the path
+     * @return Route index, or ROUTE_NONE if the path is unknown
+     */
+    public static short match(byte[] buffer, short offset, short length) {
+        for (short i = offset; i < (short) (offset + length); i++) {
+            if (buffer[i] == '?') {
+                length = (short) (i - offset);
+                break;
+            }
+        }
+        for (short route = 0; route < (short) routeOffsets.length; route++) {
+            if (routeLengths[route] == length
+                    && Util.arrayCompare(routes, routeOffsets[route], buffer, offset, length) == 0) {
+                return route;
+            }
+        }
+        return ROUTE_NONE;
+    }
+
+    /**
+     * Returns the mask of fields returned by a route.
+     */
+    public static short getFieldMask(short route) {
+        return routeMasks[route];
+    }
+}
@@ -0,0 +1,163 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import uicc.toolkit.ProactiveHandler;
+import uicc.toolkit.ProactiveHandlerSystem;
+
+import static uicc.toolkit.ToolkitConstants.*;
+
+/**
+ * SMSManager class
+ * <p>
+ * Fallback transport sending reports with SEND SHORT MESSAGE when BIP is not available.
+ * <p>
+ * Reports are sent as 8-bit data SMS-SUBMIT messages (3GPP TS 23.040) so that every
+ * message carries up to 140 bytes. A report that does not fit in one message is split
+ * into concatenated messages with an 8-bit reference, each filled to the 134 bytes
+ * left after the concatenation header.
+ */
+public class SMSManager {
+
+    // SEND SHORT MESSAGE command and SMS TPDU tag (ETSI TS 102 223 Clauses 6.6.9 and 8.13)
+    private static final byte PRO_CMD_SEND_SHORT_MESSAGE = 0x13;
+    private static final byte TAG_SMS_TPDU = 0x0B;
+    private static final byte SEND_SM_NO_PACKING = 0x00;
+
+    // SMS-SUBMIT first octet: message type, with the user data header indicator if concatenated
+    private static final byte TP_MTI_SUBMIT = 0x01;
+    private static final byte TP_UDHI = 0x40;
+    private static final byte TP_PID_DEFAULT = 0x00;
+    private static final byte TP_DCS_8_BIT_DATA = 0x04;
+
+    // User data capacity, and concatenated short message header (IEI 0x00, 8-bit reference)
+    private static final short MAX_USER_DATA = 140;
+    private static final byte[] concatHeader = {0x05, 0x00, 0x03};
+    private static final short CONCAT_HEADER_SIZE = 6;
+    private static final short MAX_CONCAT_PARTS = 255;
+
+    private DiagUtil diag;
+    private byte[] tpduBuffer;
+
+    // Destination address (TP-DA) digits and type of number
+    private byte[] destination;
+    private byte typeOfAddress;
+
+    // Reference of the last concatenated message
+    private byte concatReference;
+
+    // Diagnostic error messages
+    private static byte[] SMS_ERROR = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'S', 'M', 'S'};
+
+    /**
+     * Constructor
+     *
+     * @param diag Diagnostic utility for logging errors
+     */
+    public SMSManager(DiagUtil diag) {
+        this.diag = diag;
+        tpduBuffer = JCSystem.makeTransientByteArray((short) 164, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Sets the destination of the reports.
+     *
+     * @param digits Destination address as ASCII digits (at most 20)
+     * @param toa Type of number and numbering plan, e.g. 0x91 for an international number
+     */
+    public void setDestination(byte[] digits, byte toa) {
+        destination = digits;
+        typeOfAddress = toa;
+    }
+
+    /**
+     * Sends a report in as few messages as possible.
+     *
+     * @param body Buffer containing the report
+     * @param offset Offset of the report
+     * @param length Length of the report
+     * @return True if all messages have been sent
+     */
+    public boolean sendReport(byte[] body, short offset, short length) {
+        if (destination == null || length <= 0) {
+            return false;
+        }
+        if (length <= MAX_USER_DATA) {
+            return sendPart(body, offset, length, (short) 0, (short) 0);
+        }
+
+        short partSize = (short) (MAX_USER_DATA - CONCAT_HEADER_SIZE);
+        short parts = (short) ((short) (length + partSize - 1) / partSize);
+        if (parts > MAX_CONCAT_PARTS) {
+            return false;
+        }
+        concatReference++;
+        for (short part = 1; part <= parts; part++) {
+            short size = length < partSize ? length : partSize;
+            if (!sendPart(body, offset, size, part, parts)) {
+                return false;
+            }
+            offset += size;
+            length -= size;
+        }
+        return true;
+    }
+
+    /**
+     * Sends one SMS-SUBMIT message.
+     *
+     * @param part Sequence number of the part, or 0 if the report is not concatenated
+     * @param parts Number of parts
+     * @return True if the message has been sent
+     */
+    private boolean sendPart(byte[] body, short offset, short length, short part, short parts) {
+        short tpduLength = 0;
+        tpduBuffer[tpduLength++] = part == 0 ? TP_MTI_SUBMIT : (byte) (TP_MTI_SUBMIT | TP_UDHI);
+        // Message reference, set by the terminal
+        tpduBuffer[tpduLength++] = 0x00;
+        tpduLength = addAddress(tpduBuffer, tpduLength);
+        tpduBuffer[tpduLength++] = TP_PID_DEFAULT;
+        tpduBuffer[tpduLength++] = TP_DCS_8_BIT_DATA;
+
+        if (part == 0) {
+            tpduBuffer[tpduLength++] = (byte) length;
+        } else {
+            tpduBuffer[tpduLength++] = (byte) (length + CONCAT_HEADER_SIZE);
+            tpduLength = Util.arrayCopyNonAtomic(concatHeader, (short) 0, tpduBuffer, tpduLength, (short) concatHeader.length);
+            tpduBuffer[tpduLength++] = concatReference;
+            tpduBuffer[tpduLength++] = (byte) parts;
+            tpduBuffer[tpduLength++] = (byte) part;
+        }
+        tpduLength = Util.arrayCopyNonAtomic(body, offset, tpduBuffer, tpduLength, length);
+
+        ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        ph.init(PRO_CMD_SEND_SHORT_MESSAGE, SEND_SM_NO_PACKING, DEV_ID_NETWORK);
+        ph.appendTLV((byte) (TAG_SMS_TPDU | TAG_SET_CR), tpduBuffer, (short) 0, tpduLength);
+        byte result = ph.send();
+        if (result != RES_CMD_PERF && result != RES_CMD_PERF_WITH_MODIFICATION) {
+            diag.error(SMS_ERROR, result);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the destination address (TP-DA): number of digits, type of address and
+     * the digits as swapped semi-octets, padded with 0xF.
+     *
+     * @param buffer Output buffer
+     * @param offset Current offset
+     * @return New offset after writing
+     */
+    private short addAddress(byte[] buffer, short offset) {
+        short digits = (short) destination.length;
+        buffer[offset++] = (byte) digits;
+        buffer[offset++] = typeOfAddress;
+        for (short i = 0; i < digits; i += 2) {
+            byte low = (byte) (destination[i] - '0');
+            byte high = (short) (i + 1) < digits ? (byte) (destination[(short) (i + 1)] - '0') : (byte) 0x0F;
+            buffer[offset++] = (byte) ((high << 4) | (low & 0x0F));
+        }
+        return offset;
+    }
+}
@@ -1,41 +1,57 @@
 package com.brownfields.github.hellostk3;
 
 import javacard.framework.JCSystem;
+import javacard.framework.UserException;
 import uicc.toolkit.EnvelopeHandler;
+import uicc.toolkit.ToolkitRegistrySystem;
 import javacard.framework.Util;
 
+import static uicc.toolkit.ToolkitConstants.*;
+
 /**
  * STKHandler class
  * <p>
  * Handles SIM Toolkit (STK) events and coordinates UICC information retrieval,
- * JSON payload construction, and HTTP POST sending through BIP.
+ * JSON payload construction, and HTTP or CoAP POST sending through BIP.
+ * It also receives the parsed HTTP responses as an HttpResponseListener.
  */
-public class STKHandler {
+public class STKHandler implements HttpResponseListener, ServerRequestListener {
     // Providers and utilities
     private UICCInfoProvider uiccInfoProvider;
     private DiagUtil diag;
     private BIPManager bipManager;
+    private SMSManager smsManager;
+    private ReportQueue reportQueue;
+    private ReportScheduler reportScheduler;
+    private UploadPolicy uploadPolicy;
 
     // Diagnostic error message
     private static byte[] STKHANDLER_ERROR_GENERAL = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'S', 'T', 'K'};
 
+    // Prefix used to display the HTTP status of a response
+    private static final byte[] httpStatusText = {'H', 'T', 'T', 'P', ' '};
+    // Location status value for normal service
+    private static final byte LOCATION_STATUS_NORMAL_SERVICE = 0x00;
+
     // Buffer for building JSON payload
     private byte[] jsonBodyBuffer;
     private byte[] tmpBuffer; // Shared temporary buffer for processing
 
-    // JSON keys to include in the body
-    private static final byte[] keys = {
-            'i', 'c', 'c', 'i', 'd',   // 5 bytes
-            'i', 'm', 'e', 'i',        // 4 bytes
-            'm', 'c', 'c',             // 3 bytes
-            'm', 'n', 'c'              // 3 bytes
-    };
+    // Report contents (JSON keys, CBOR keys and sources) are declared in FieldRegistry
 
-    // Offsets for each key inside the flat array
-    private static final short[] keyOffsets = {0, 5, 9, 12};
+    // Raw sources of the last accepted report (FieldRegistry raw layout) followed by their lengths
+    private static final short FINGERPRINT_SIZE = (short) (FieldRegistry.RAW_SIZE + FieldRegistry.SOURCE_COUNT);
+    private byte[] sentFingerprint;
+    // Fingerprint of the report sent on its own and a valid flag, committed once the server
+    // accepts that report and discarded if it fails. Batches of queued reports carry none
+    private byte[] pendingFingerprint;
 
-    // Lengths for each key
-    private static final short[] keyLengths = {5, 4, 3, 3};
+    // Transient flag set while an upload waits for its response. Responses are not tied
+    // to a request, so only one report upload is in progress at a time
+    private boolean[] uploadPending;
+    // Transient flag set while the pending upload carries a user-initiated report. Reports
+    // sent by the timer stay silent: only their errors are displayed
+    private boolean[] showResponse;
 
     // Server information
     static byte[] serverAddr = {(byte) 178, (byte) 63, (byte) 67, (byte) 106};
@@ -43,6 +59,68 @@ public class STKHandler {
     static final byte[] apiPath = {'/', '7', '3', '5', '2', '7', '1', 'd', '5', '-', '8', '6', '4', '0', '-', '4', '8', 'f', 'c', '-', 'b', 'f', '7', '6', '-', 'a', '4', 'f', 'e', '8', '1', '9', '6', '6', '3', '1', 'f'};
     static final byte[] hostName = {'w', 'e', 'b', 'h', 'o', 'o', 'k', '.', 's', 'i', 't', 'e'};
 
+    // Transport options
+    // Keep the HTTP channel open between reports, until keepAliveIdleTimeout seconds without
+    // activity, instead of sending "Connection: close" and closing it after each response
+    static boolean keepAlive = false;
+    // Open the channel in advance when the device gets normal service (EVENT_DOWNLOAD_LOCATION_STATUS)
+    static boolean prewarmChannel = false;
+    // Let the first SEND DATA activate the bearer instead of OPEN CHANNEL
+    static boolean onDemandLink = false;
+    // Bearer description for OPEN CHANNEL (ETSI TS 102 223 Clause 8.52), null for the default bearer.
+    // For example GPRS/UTRAN/E-UTRAN packet service: {0x02, precedence, delay, reliability,
+    // peak throughput, mean throughput, 0x02 (IP)}, e.g. {0x02, 0x03, 0x04, 0x03, 0x04, 0x1F, 0x02}
+    static byte[] bearerDescription = null;
+    static short keepAliveIdleTimeout = (short) 30;
+    // Only read the HTTP status line and drop the response body (closes the channel)
+    static boolean statusOnly = false;
+    // Report transport: HTTP over TCP, or CoAP over UDP
+    static byte transport = BIPManager.TRANSPORT_HTTP;
+    static short coapPort = (short) 5683;
+    // Report body format: CoapUtil.FORMAT_JSON (text) or CoapUtil.FORMAT_CBOR (packed BCD)
+    static short reportFormat = CoapUtil.FORMAT_JSON;
+    // Framing of batched JSON reports: BatchUtil.FRAMING_JSON_ARRAY or BatchUtil.FRAMING_NDJSON
+    static byte batchFraming = BatchUtil.FRAMING_JSON_ARRAY;
+    // Number of reports collected before they are uploaded together (1 sends each report at once),
+    // at most the 8 reports the queue can hold
+    static short batchSize = (short) 1;
+    // Stream queued reports with chunked transfer encoding instead of building the batch
+    // in RAM, so a batch is not limited by the body buffer (HTTP transport only)
+    static boolean streamUpload = false;
+    // Only send the fields that changed since the last accepted report in periodic reports
+    static boolean deltaReporting = true;
+
+    // Send reports by SMS when the terminal has no BIP support or BIP fails permanently
+    static boolean smsFallback = false;
+    // Destination of SMS reports (ASCII digits) and its type of address (0x91: international)
+    static byte[] smsDestination = {'4', '4', '7', '7', '0', '0', '9', '0', '0', '1', '2', '3'};
+    static byte smsDestinationToa = (byte) 0x91;
+
+    // Listen for collector queries with the UICC in TCP server mode (GET /, /iccid, /imei, /plmn).
+    // Needs a terminal supporting two channels, so that reports can still be sent
+    static boolean serverMode = false;
+    static short serverListenPort = (short) 8080;
+
+    // Defer uploads while the serving cell is weak: non-urgent reports are queued while
+    // the GERAN RXLEV (0 to 63, i.e. -110 to -48 dBm) or the E-UTRAN RSRP-Range (0 to 97,
+    // i.e. -140 to -44 dBm) is below its threshold, unless fewer than deferFreeSlots queue
+    // slots would be left, and retried with backoff. Never deferred on other access technologies
+    static boolean signalAwareUpload = false;
+    static short minUploadRxlev = (short) 10;
+    static short minUploadRsrp = (short) 25;
+    static short deferFreeSlots = (short) 2;
+
+    // Periodic reporting interval and maximum random delay added to it, in seconds.
+    // 0 disables periodic reports, e.g. when the collector pulls them in server mode;
+    // 3600 sends a silent report every hour or so
+    static short reportInterval = (short) 0;
+    static short reportJitter = (short) 600;
+
+    // Backoff after a temporary failure: first delay, maximum delay (seconds) and number of retries
+    static short retryBaseDelay = (short) 30;
+    static short retryMaxDelay = (short) 1800;
+    static short retryMaxAttempts = (short) 6;
+
     /**
      * Constructor
      *
@@ -54,36 +132,282 @@ public class STKHandler {
         this.tmpBuffer = tmpBuffer;
 
         this.bipManager = new BIPManager(diag, tmpBuffer);
+        this.bipManager.setKeepAlive(keepAlive, keepAliveIdleTimeout);
+        this.bipManager.setHttpEndpoint(apiPath, hostName, serverAddr, serverPort);
+        this.bipManager.setStatusOnly(statusOnly);
+        this.bipManager.setOnDemandLink(onDemandLink);
+        this.bipManager.setBearerDescription(bearerDescription);
+        this.bipManager.setResponseListener(this);
+        this.bipManager.setServerListener(this);
+        this.smsManager = new SMSManager(diag);
+        this.smsManager.setDestination(smsDestination, smsDestinationToa);
         this.uiccInfoProvider = new UICCInfoProvider(tmpBuffer, diag);
+        this.reportQueue = new ReportQueue();
+        this.reportScheduler = new ReportScheduler(reportInterval, reportJitter);
+        this.reportScheduler.setRetryPolicy(retryBaseDelay, retryMaxDelay, retryMaxAttempts);
+        this.uploadPolicy = new UploadPolicy(minUploadRxlev, minUploadRsrp, deferFreeSlots);
 
         this.jsonBodyBuffer = JCSystem.makeTransientByteArray((short) 320, JCSystem.CLEAR_ON_RESET);
+        this.sentFingerprint = new byte[FINGERPRINT_SIZE];
+        this.pendingFingerprint = JCSystem.makeTransientByteArray((short) (FINGERPRINT_SIZE + 1), JCSystem.CLEAR_ON_RESET);
+        this.uploadPending = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        this.showResponse = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
     }
 
     /**
      * Handles EVENT_MENU_SELECTION.
      * <p>
-     * Builds a JSON payload with UICC information and sends it over HTTP POST using BIP.
+     * Sends a full report: delta reports are only sent by the timer.
      */
     public void eventMenuSelection() {
+        report(true);
+    }
+
+    /**
+     * Builds a JSON or CBOR payload with UICC information and sends it over HTTP POST using BIP.
+     * <p>
+     * With delta reporting only the fields that changed since the last accepted report are
+     * sent, together with the ICCID that identifies the device and the radio telemetry,
+     * and nothing is sent if no field changed. A forced report always contains all fields.
+     * <p>
+     * Every report is queued in EEPROM until the server accepts it, so a report that
+     * cannot be sent or is rejected stays queued; while reports are queued, new reports
+     * are queued behind them and the whole queue is uploaded as one batch once
+     * batchSize reports are pending.
+     * <p>
+     * With signal-aware uploads, a report is also queued while the radio conditions are
+     * poor, unless it is forced or an urgent source (ICCID, IMEI) changed.
+     * <p>
+     * Only the response to a forced report, which the user requested, is displayed.
+     *
+     * @param forced True to send all fields even if nothing changed
+     */
+    public void report(boolean forced) {
         try {
+            uiccInfoProvider.beginCollection();
+            byte[] rawBuffer = uiccInfoProvider.getRawBuffer();
+            short[] rawOffsets = uiccInfoProvider.getRawOffsets();
+            short[] rawLengths = uiccInfoProvider.getRawLengths();
+
+            short changed = findChangedFields(rawBuffer, rawOffsets, rawLengths);
+            boolean urgent = forced || (changed & FieldRegistry.getUrgentMask()) != 0;
+
+            short fieldMask = (short) -1;
+            if (deltaReporting && !forced) {
+                if (changed == 0) {
+                    return;
+                }
+                fieldMask = (short) (changed | FieldRegistry.getAlwaysSentMask());
+            }
+
+            short bodyLength;
+            if (reportFormat == CoapUtil.FORMAT_CBOR) {
+                bodyLength = CborUtil.buildCbor(
+                        FieldRegistry.sourceCborKeys,
+                        rawBuffer, rawOffsets, rawLengths,
+                        fieldMask, jsonBodyBuffer, (short) 0
+                );
+            } else {
+                byte[] fullBuffer = uiccInfoProvider.getFullBuffer();
+                short[] valueOffsets = uiccInfoProvider.getFullOffsets();
+                short[] valueLengths = uiccInfoProvider.getFullLengths();
+
+                bodyLength = JsonUtil.buildJson(
+                        FieldRegistry.fieldKeys, FieldRegistry.fieldKeyOffsets, FieldRegistry.fieldKeyLengths,
+                        fullBuffer, valueOffsets, valueLengths,
+                        FieldRegistry.getFieldMask(fieldMask), jsonBodyBuffer, (short) 0
+                );
+            }
+
+            boolean deferred = deferUpload(urgent, (short) (reportQueue.count() + 1));
+            boolean single = batchSize <= 1 && reportQueue.isEmpty() && !deferred && !uploadPending[0];
+            boolean queued = reportQueue.enqueue(jsonBodyBuffer, (short) 0, bodyLength, reportFormat);
+            if (!uploadPending[0]) {
+                showResponse[0] = forced;
+            }
+            if (single) {
+                // Sent on its own, and released from the queue once accepted
+                if (queued) {
+                    reportQueue.markNewestInFlight();
+                }
+                // Remember what this report contains until the server accepts it
+                Util.arrayCopyNonAtomic(rawBuffer, (short) 0, pendingFingerprint, (short) 0, FieldRegistry.RAW_SIZE);
+                for (short i = 0; i < FieldRegistry.SOURCE_COUNT; i++) {
+                    pendingFingerprint[(short) (FieldRegistry.RAW_SIZE + i)] = (byte) rawLengths[i];
+                }
+                pendingFingerprint[FINGERPRINT_SIZE] = 1;
+                if (!sendReport(jsonBodyBuffer, bodyLength, reportFormat)) {
+                    cancelUpload();
+                }
+            } else if (deferred) {
+                // Retried with backoff, once the conditions may have improved
+                reportScheduler.scheduleRetry();
+            } else if (reportQueue.count() >= getBatchSize()) {
+                // The radio conditions have just been checked
+                flushQueue(true);
+            }
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
 
-            byte[] fullBuffer = uiccInfoProvider.getFullBuffer();
-            short[] valueOffsets = uiccInfoProvider.getFullOffsets();
-            short[] valueLengths = uiccInfoProvider.getFullLengths();
 
-            short bodyLength = JsonUtil.buildJson(
-                    keys, keyOffsets, keyLengths,
-                    fullBuffer, valueOffsets, valueLengths,
-                    jsonBodyBuffer, (short) 0
-            );
+        }
 
-            bipManager.sendHTTPPost(jsonBodyBuffer, bodyLength, serverAddr, serverPort, apiPath, hostName);
-        } catch (Exception e) {
-            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+    }
+
+    /**
+     * Returns the number of reports uploaded together, at most the capacity of the queue.
+     */
+    private short getBatchSize() {
+        short capacity = reportQueue.getCapacity();
+        return batchSize > capacity ? capacity : batchSize;
+    }
+
+    /**
+     * Compares the raw sources with the fingerprint of the last accepted report, over
+     * the leading bytes that FieldRegistry declares for delta reports.
+     *
+     * @return Bit i set if source i changed
+     */
+    private short findChangedFields(byte[] rawBuffer, short[] rawOffsets, short[] rawLengths) {
+        short changed = 0;
+        for (short i = 0; i < FieldRegistry.SOURCE_COUNT; i++) {
+            short deltaLength = FieldRegistry.sourceDeltaLengths[i];
+            short length = rawLengths[i] < deltaLength ? rawLengths[i] : deltaLength;
+            short sentLength = sentFingerprint[(short) (FieldRegistry.RAW_SIZE + i)];
+            if (sentLength > deltaLength) {
+                sentLength = deltaLength;
+            }
+            if (sentLength != length
+                    || Util.arrayCompare(rawBuffer, rawOffsets[i], sentFingerprint, rawOffsets[i], length) != 0) {
+                changed |= (short) (1 << i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Uploads the queued reports as one batched request.
+     * The reports stay queued until the server accepts the batch.
+     * <p>
+     * In streaming mode the reports are sent from the queue as they are read, with
+     * chunked transfer encoding, instead of being copied into the body buffer first.
+     * <p>
+     * A non-urgent upload is deferred while the radio conditions are poor, and retried
+     * with backoff. While an upload waits for its response, no other upload is started
+     * and the queue is retried with backoff; once the retries run out the response is
+     * considered lost.
+     *
+     * @param urgent True to upload whatever the radio conditions
+     * @return False if there was nothing to upload
+     */
+    public boolean flushQueue(boolean urgent) throws UserException {
+        byte framing = batchFraming;
+        short contentFormat = CoapUtil.FORMAT_JSON;
+        if (reportFormat == CoapUtil.FORMAT_CBOR) {
+            framing = BatchUtil.FRAMING_CBOR_ARRAY;
+            contentFormat = CoapUtil.FORMAT_CBOR;
+        } else if (framing == BatchUtil.FRAMING_NDJSON) {
+            contentFormat = CoapUtil.FORMAT_NDJSON;
+        }
 
+        if (reportQueue.isEmpty()) {
+            return false;
+        }
+        if (uploadPending[0]) {
+            if (!reportScheduler.scheduleRetry()) {
+                cancelUpload();
+            }
+            return true;
+        }
+        if (deferUpload(urgent, reportQueue.count())) {
+            reportScheduler.scheduleRetry();
+            return true;
+        }
+
+        if (streamUpload && transport == BIPManager.TRANSPORT_HTTP && bipManager.isAvailable()) {
+            boolean sent = bipManager.beginHTTPStream(contentFormat, serverAddr, serverPort)
+                    && reportQueue.streamBatch(reportFormat, framing, bipManager);
+            uploadPending[0] = sent;
+            updateRetry(sent);
+            return true;
+        }
+
+        // A CoAP batch is sent as one datagram, built behind its header and options
+        short maxLength = (short) jsonBodyBuffer.length;
+        if (transport == BIPManager.TRANSPORT_COAP) {
+            short maxCoapLength = bipManager.getMaxCoapBody(apiPath, hostName);
+            if (maxCoapLength < maxLength) {
+                maxLength = maxCoapLength;
+            }
+        }
+        short batchLength = reportQueue.buildBatch(reportFormat, framing, jsonBodyBuffer, (short) 0, maxLength);
+        if (batchLength == 0) {
+            return false;
+        }
+        if (!sendReport(jsonBodyBuffer, batchLength, contentFormat)) {
+            cancelUpload();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a non-urgent upload should wait for better radio conditions.
+     *
+     * @param urgent True if the upload cannot be deferred
+     * @param queued Number of queued reports if the upload is deferred
+     */
+    private boolean deferUpload(boolean urgent, short queued) throws UserException {
+        if (urgent || !signalAwareUpload) {
+            return false;
+        }
+        return uploadPolicy.shouldDefer(uiccInfoProvider.getRawBuffer(), uiccInfoProvider.getRawOffsets(),
+                uiccInfoProvider.getRawLengths(), queued, reportQueue.getCapacity());
+    }
+
+    /**
+     * Sends a report body with the configured transport.
+     * A temporary failure schedules a retry of the queue with backoff; a success or a
+     * permanent failure ends any pending retry.
+     * With the SMS fallback, a report is sent by SMS if the terminal has no BIP
+     * support or the BIP failure is permanent.
+     *
+     * @param contentFormat Body format (CoapUtil.FORMAT_*)
+     * @return True if the request has been sent
+     */
+    private boolean sendReport(byte[] body, short bodyLength, short contentFormat) {
+        boolean sent = false;
+        boolean bipAvailable = bipManager.isAvailable();
+        if (bipAvailable) {
+            if (transport == BIPManager.TRANSPORT_COAP) {
+                sent = bipManager.sendCoapPost(body, bodyLength, contentFormat, serverAddr, coapPort, apiPath, hostName);
+            } else {
+                sent = bipManager.sendHTTPPost(body, bodyLength, contentFormat, serverAddr, serverPort);
+            }
+            uploadPending[0] = sent;
+        }
 
+        // SMS has no response: a report sent by SMS is accepted at once
+        if (!sent && smsFallback
+                && (!bipAvailable || bipManager.getLastFailure() == BIPManager.FAILURE_PERMANENT)
+                && smsManager.sendReport(body, (short) 0, bodyLength)) {
+            acceptReport();
+            sent = true;
         }
+        updateRetry(sent);
+        return sent;
+    }
 
+    /**
+     * Schedules a retry after a temporary failure, or ends any pending retry.
+     *
+     * @param sent True if the request has been sent
+     */
+    private void updateRetry(boolean sent) {
+        if (!sent && bipManager.getLastFailure() == BIPManager.FAILURE_TEMPORARY) {
+            reportScheduler.scheduleRetry();
+        } else {
+            reportScheduler.endRetry();
+        }
     }
 
     /**
@@ -116,12 +440,239 @@ public class STKHandler {
         }
     }
 
+    /**
+     * Handles the status code of an HTTP response. If the report was accepted,
+     * the uploaded batch is removed from the queue and the fingerprint is updated,
+     * otherwise it stays queued. The status is displayed for a user-initiated report
+     * and for errors; the response of an upload that was given up is ignored otherwise.
+     */
+    public void onStatus(short statusCode) {
+        boolean success = statusCode >= 200 && statusCode < 300;
+        boolean show = !success;
+        if (!uploadPending[0]) {
+            // No upload is waiting for this response
+        } else if (success) {
+            show = showResponse[0];
+            acceptReport();
+        } else {
+            cancelUpload();
+        }
+        if (!show) {
+            return;
+        }
+
+        short offset = Util.arrayCopyNonAtomic(httpStatusText, (short) 0, tmpBuffer, (short) 0, (short) httpStatusText.length);
+        offset = ByteUtil.numToCharArray(statusCode, tmpBuffer, offset);
+        DiagUtil.text(tmpBuffer, (short) 0, offset);
+    }
+
+    /**
+     * Removes the uploaded batch from the queue and updates the fingerprint once a
+     * report has been accepted.
+     */
+    private void acceptReport() {
+        uploadPending[0] = false;
+        reportQueue.releaseInFlight();
+        if (pendingFingerprint[FINGERPRINT_SIZE] != 0) {
+            Util.arrayCopy(pendingFingerprint, (short) 0, sentFingerprint, (short) 0, FINGERPRINT_SIZE);
+            pendingFingerprint[FINGERPRINT_SIZE] = 0;
+        }
+    }
+
+    /**
+     * Keeps the uploaded reports queued after a failed upload, and discards the
+     * fingerprint of the report, which the server did not get.
+     */
+    private void cancelUpload() {
+        uploadPending[0] = false;
+        reportQueue.cancelInFlight();
+        pendingFingerprint[FINGERPRINT_SIZE] = 0;
+    }
+
+    /**
+     * Response bodies are not used by the reporting flow.
+     */
+    public void onBody(byte[] buffer, short offset, short length) {
+    }
+
+    public void onComplete() {
+    }
+
+    /**
+     * Keeps the uploaded reports queued when no response was received, and retries
+     * them with backoff.
+     */
+    public void onFailure() {
+        if (uploadPending[0]) {
+            cancelUpload();
+            reportScheduler.scheduleRetry();
+        }
+    }
+
+    /**
+     * Answers a collector query received in server mode with the fields of its route.
+     */
+    public short onRequest(byte[] buffer, short pathOffset, short pathLength, byte[] outBuffer, short outOffset)
+            throws UserException {
+        short route = RequestRouter.match(buffer, pathOffset, pathLength);
+        if (route == RequestRouter.ROUTE_NONE) {
+            return -1;
+        }
+        uiccInfoProvider.beginCollection();
+        short end = JsonUtil.buildJson(
+                FieldRegistry.fieldKeys, FieldRegistry.fieldKeyOffsets, FieldRegistry.fieldKeyLengths,
+                uiccInfoProvider.getFullBuffer(), uiccInfoProvider.getFullOffsets(), uiccInfoProvider.getFullLengths(),
+                RequestRouter.getFieldMask(route), outBuffer, outOffset
+        );
+        return (short) (end - outOffset);
+    }
+
+    /**
+     * Handles EVENT_DOWNLOAD_LOCATION_STATUS.
+     * <p>
+     * Updates the cached location sources. Pre-warms the report channel, and reopens
+     * the server channel if needed, when the device gets normal service.
+     */
+    public void processLocationStatus(EnvelopeHandler eh) {
+        try {
+            if (uiccInfoProvider.processEvent(EVENT_EVENT_DOWNLOAD_LOCATION_STATUS, eh)) {
+                ToolkitRegistrySystem.getEntry().setEvent(EVENT_STATUS_COMMAND);
+            }
+            if (eh.findTLV(TAG_LOCATION_STATUS, (byte) 0x01) == TLV_NOT_FOUND
+                    || eh.getValueByte((short) 0) != LOCATION_STATUS_NORMAL_SERVICE) {
+                return;
+            }
+            if (serverMode) {
+                bipManager.openServer(serverListenPort);
+            }
+            if (prewarmChannel) {
+                if (transport == BIPManager.TRANSPORT_COAP) {
+                    bipManager.prewarmChannel(transport, serverAddr, coapPort);
+                } else {
+                    bipManager.prewarmChannel(transport, serverAddr, serverPort);
+                }
+            }
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
+    /**
+     * Handles EVENT_PROFILE_DOWNLOAD.
+     * <p>
+     * Invalidates the cached device sources (IMEI), as the terminal may have changed,
+     * and delegates processing to ReportScheduler, which requests the STATUS event
+     * that prefetches them.
+     */
+    public void processProfileDownload() {
+        try {
+            uiccInfoProvider.processEvent(EVENT_PROFILE_DOWNLOAD, null);
+            reportScheduler.processProfileDownload();
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
+    /**
+     * Handles EVENT_EXTERNAL_FILE_UPDATE.
+     * <p>
+     * Only EF_ICCID is registered, so the cached ICCID is invalidated and read again
+     * by the prefetch on the next STATUS event.
+     */
+    public void processFileUpdate() {
+        try {
+            if (uiccInfoProvider.processEvent(EVENT_EXTERNAL_FILE_UPDATE, null)) {
+                ToolkitRegistrySystem.getEntry().setEvent(EVENT_STATUS_COMMAND);
+            }
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
+    /**
+     * Handles EVENT_DOWNLOAD_ACCESS_TECHNOLOGY_CHANGE and EVENT_DOWNLOAD_NETWORK_SEARCH_MODE_CHANGE.
+     * <p>
+     * Updates the cached radio sources from the envelope.
+     */
+    public void processRadioEvent(short event, EnvelopeHandler eh) {
+        try {
+            if (uiccInfoProvider.processEvent(event, eh)) {
+                ToolkitRegistrySystem.getEntry().setEvent(EVENT_STATUS_COMMAND);
+            }
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
+    /**
+     * Handles EVENT_STATUS_COMMAND.
+     * <p>
+     * Delegates processing to ReportScheduler and prefetches the UICC and device fields,
+     * one command per STATUS event, so that user-triggered reports need no command to
+     * collect them. Once all fields are cached, the STATUS event is released and the
+     * server channel is opened in server mode.
+     */
+    public void processStatusCommand() {
+        try {
+            reportScheduler.processStatusCommand();
+            if (uiccInfoProvider.prefetchNext()) {
+                return;
+            }
+            ToolkitRegistrySystem.getEntry().clearEvent(EVENT_STATUS_COMMAND);
+            if (serverMode) {
+                bipManager.openServer(serverListenPort);
+            }
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
+    /**
+     * Handles EVENT_TIMER_EXPIRATION.
+     * <p>
+     * Dispatches the expired timer to its owner. A scheduler expiration sends a delta
+     * report, or retries the upload of the queue after a temporary failure.
+     */
+    public void processTimerExpiration(EnvelopeHandler eh) {
+        try {
+            byte timerId = TimerUtil.getTimerIdentifier(eh);
+            byte action = reportScheduler.processTimerExpiration(timerId);
+            if (action == ReportScheduler.ACTION_REPORT) {
+                report(false);
+            } else if (action == ReportScheduler.ACTION_RETRY) {
+                if (!uploadPending[0]) {
+                    showResponse[0] = false;
+                }
+                // Measure the radio conditions again before the retry
+                uiccInfoProvider.beginCollection();
+                if (!flushQueue(false)) {
+                    reportScheduler.endRetry();
+                }
+            } else {
+                bipManager.processTimerExpiration(timerId);
+            }
+
+        } catch (Exception e) {
+            DiagUtil.text(STKHANDLER_ERROR_GENERAL);
+
+        }
+    }
+
 
     public void displayIccidOnMenuSelection() {
         try {
-            byte[] iccid = uiccInfoProvider.getIccidBuffer();
-            short length = uiccInfoProvider.getIccidLength();
-            DiagUtil.text(iccid, (short) 0, length);
+            short length = uiccInfoProvider.copyField(FieldRegistry.FIELD_ICCID, tmpBuffer, (short) 0);
+            DiagUtil.text(tmpBuffer, (short) 0, length);
 
         } catch (Exception e) {
             DiagUtil.text(STKHANDLER_ERROR_GENERAL);
@@ -130,15 +681,10 @@ public class STKHandler {
 
     public void displayMncMccOnMenuSelection() {
         try {
-            byte[] mcc = uiccInfoProvider.getMccBuffer();
-            byte[] mnc = uiccInfoProvider.getMncBuffer();
-
             // Usamos tmpBuffer como buffer de trabajo
-            Util.arrayCopyNonAtomic(mcc, (short) 0, tmpBuffer, (short) 0, (short) mcc.length);
-            tmpBuffer[mcc.length] = (byte) '-';
-            Util.arrayCopyNonAtomic(mnc, (short) 0, tmpBuffer, (short) (mcc.length + 1), (short) mnc.length);
-
-            short totalLength = (short) (mcc.length + 1 + mnc.length);
+            short offset = uiccInfoProvider.copyField(FieldRegistry.FIELD_MCC, tmpBuffer, (short) 0);
+            tmpBuffer[offset++] = (byte) '-';
+            short totalLength = uiccInfoProvider.copyField(FieldRegistry.FIELD_MNC, tmpBuffer, offset);
             DiagUtil.text(tmpBuffer, (short) 0, totalLength);
 
         } catch (Exception e) {
@@ -153,7 +699,7 @@ public class STKHandler {
             short[] valueLengths = uiccInfoProvider.getFullLengths();
 
             short bodyLength = JsonUtil.buildJson(
-                    keys, keyOffsets, keyLengths,
+                    FieldRegistry.fieldKeys, FieldRegistry.fieldKeyOffsets, FieldRegistry.fieldKeyLengths,
                     fullBuffer, valueOffsets, valueLengths,
                     jsonBodyBuffer, (short) 0
             );
@@ -169,8 +715,8 @@ public class STKHandler {
 
     public void displayImeiOnMenuSelection() {
         try {
-            byte[] imei = uiccInfoProvider.getImeiBuffer();
-            DiagUtil.text(imei, (short) 0, (short) imei.length);
+            short length = uiccInfoProvider.copyField(FieldRegistry.FIELD_IMEI, tmpBuffer, (short) 0);
+            DiagUtil.text(tmpBuffer, (short) 0, length);
 
         } catch (Exception e) {
             DiagUtil.text(STKHANDLER_ERROR_GENERAL);
@@ -0,0 +1,26 @@
+package com.brownfields.github.hellostk3;
+
+import javacard.framework.UserException;
+
+/**
+ * ServerRequestListener interface
+ * <p>
+ * Answers the requests received on the UICC server channel opened by {@link BIPManager}.
+ */
+public interface ServerRequestListener {
+
+    /**
+     * Called when the request line of a GET request has been received.
+     * The path is only valid for the duration of the call.
+     *
+     * @param buffer Buffer containing the request
+     * @param pathOffset Offset of the request path
+     * @param pathLength Length of the request path
+     * @param outBuffer Buffer where the JSON response body must be written
+     * @param outOffset Offset of the response body
+     * @return Length of the response body, or -1 if the path is unknown
+     * @throws UserException If the queried fields cannot be read
+     */
+    short onRequest(byte[] buffer, short pathOffset, short pathLength, byte[] outBuffer, short outOffset)
+            throws UserException;
+}
@@ -0,0 +1,72 @@
+package com.brownfields.github.hellostk3;
+
+import uicc.toolkit.EnvelopeHandler;
+import uicc.toolkit.ProactiveHandler;
+import uicc.toolkit.ProactiveHandlerSystem;
+
+import static uicc.toolkit.ToolkitConstants.*;
+
+/**
+ * TimerUtil class
+ * <p>
+ * Utility methods for starting and stopping toolkit timers through the
+ * TIMER MANAGEMENT proactive command (ETSI TS 102 223 Clause 6.4.21).
+ */
+public class TimerUtil {
+
+    // TIMER MANAGEMENT command qualifiers
+    private static final byte TIMER_START = 0x00;
+    private static final byte TIMER_DEACTIVATE = 0x01;
+
+    /**
+     * Starts (or restarts) a toolkit timer.
+     *
+     * @param timerId Timer identifier returned by ToolkitRegistry.allocateTimer()
+     * @param seconds Timer value in seconds
+     */
+    public static void start(byte timerId, short seconds) {
+        short hours = (short) (seconds / 3600);
+        short minutes = (short) ((seconds % 3600) / 60);
+        short secs = (short) (seconds % 60);
+
+        ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        ph.init(PRO_CMD_TIMER_MANAGEMENT, TIMER_START, DEV_ID_TERMINAL);
+        ph.appendTLV((byte) (TAG_TIMER_IDENTIFIER | TAG_SET_CR), timerId);
+        ph.appendTLV((byte) (TAG_TIMER_VALUE | TAG_SET_CR), toSwappedBcd(hours),
+                (short) ((toSwappedBcd(minutes) << 8) | (toSwappedBcd(secs) & 0xFF)));
+        ph.send();
+    }
+
+    /**
+     * Deactivates a toolkit timer. The result is ignored, as the timer may
+     * already have expired.
+     *
+     * @param timerId Timer identifier
+     */
+    public static void stop(byte timerId) {
+        ProactiveHandler ph = ProactiveHandlerSystem.getTheHandler();
+        ph.init(PRO_CMD_TIMER_MANAGEMENT, TIMER_DEACTIVATE, DEV_ID_TERMINAL);
+        ph.appendTLV((byte) (TAG_TIMER_IDENTIFIER | TAG_SET_CR), timerId);
+        ph.send();
+    }
+
+    /**
+     * Returns the identifier of the expired timer from an EVENT_TIMER_EXPIRATION envelope.
+     *
+     * @param eh Envelope handler
+     * @return Timer identifier, or 0 if not present
+     */
+    public static byte getTimerIdentifier(EnvelopeHandler eh) {
+        if (eh.findTLV(TAG_TIMER_IDENTIFIER, (byte) 0x01) != TLV_NOT_FOUND) {
+            return eh.getValueByte((short) 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes a value (0-99) as a BCD byte with swapped semi-octets, as used by the timer value TLV.
+     */
+    private static byte toSwappedBcd(short value) {
+        return (byte) (((value % 10) << 4) | (value / 10));
+    }
+}
@@ -4,7 +4,7 @@ import javacard.framework.JCSystem;
 import javacard.framework.UserException;
 import javacard.framework.Util;
 import uicc.access.FileView;
-import uicc.access.UICCConstants;
+import uicc.access.UICCException;
 import uicc.access.UICCSystem;
 import uicc.toolkit.*;
 
@@ -13,49 +13,67 @@ import static uicc.toolkit.ToolkitConstants.*;
 /**
  * UICCInfoProvider class
  * <p>
- * Provides access to SIM/UICC information such as ICCID, IMEI, MCC, and MNC.
+ * Provides access to SIM/UICC information such as ICCID, IMEI, MCC, and MNC, and to
+ * the radio environment (location, measurement results, timing advance, access
+ * technology and network search mode).
  * Buffers are internally managed and data is lazily loaded upon request.
+ * <p>
+ * The sources and fields are declared in FieldRegistry. Each source is first read in
+ * its raw encoding (packed BCD as stored on the card or returned by the terminal),
+ * with one command for all the fields it contains. The text form of the fields is
+ * only decoded from it when requested.
+ * <p>
+ * The raw values of the sources cached until their event are also kept in EEPROM, so
+ * they survive a reset and most reports are built without any proactive command. A
+ * source is only read again once invalidated by its event (a terminal profile download
+ * for the IMEI, an update of EF_ICCID for the ICCID), updated from the envelope of its
+ * event (a location status for the PLMN), or when its TTL has expired. Measurements
+ * read for every report and the decoded fields are only kept in RAM, and the EEPROM
+ * copy is only written when a cached source changes.
+ * <p>
+ * Sources that are not defined on the current access technology, such as the timing
+ * advance on E-UTRAN, are left empty without a command, and measurement results are
+ * requested with the measurement qualifier of the access technology.
  */
 public class UICCInfoProvider {
 
-    // Main buffer containing all information
+    // Main buffer containing all decoded fields, at fixed offsets (transient)
     private final byte[] fullBuffer;
 
     // Offsets and lengths for each field inside fullBuffer
     private final short[] fieldOffsets;
     private final short[] fieldLengths;
 
-    // Buffers used for reading and storing UICC information
-    private final byte[] readBuffer;
-    private final byte[] tmpBuffer;
+    // Raw sources in FieldRegistry order (transient)
+    private final byte[] rawBuffer;
+    private final short[] rawOffsets;
+    private final short[] rawLengths;
 
-    // Private buffers for each extracted field
-    private byte[] imeiCopyBuffer;
-    private byte[] mccCopyBuffer;
-    private byte[] mncCopyBuffer;
-    private byte[] iccidCopyBuffer;
+    // Persistent copy of the sources cached until their event, in the same layout, and
+    // flags to track them, valid across resets. A flag is set after its data is written
+    // and cleared before it is invalidated
+    private final byte[] rawCache;
+    private final short[] cacheLengths;
+    private final boolean[] rawLoaded;
 
-    private short iccidLength;
+    // Transient flags: the persistent copy has been restored since the reset, and the
+    // fields of each source have been decoded
+    private final boolean[] restored;
+    private final boolean[] decoded;
 
+    // Reports since each source with a TTL was read (transient): 0 if not read since
+    // the reset, then 1 until the first report after the read
+    private final short[] rawAges;
+
+    // Shared temporary buffer
+    private final byte[] tmpBuffer;
 
     // FileView allows access to UICC filesystem to read files like ICCID.
     private FileView uiccFileView;
 
-    // Flags to track loaded data
-    private boolean localInfoLoaded;
-    private boolean imeiLoaded;
-    private boolean iccidLoaded;
-
-    // Index constants for fields
-    private static final short INDEX_ICCID = 0;
-    private static final short INDEX_IMEI = 1;
-    private static final short INDEX_MCC = 2;
-    private static final short INDEX_MNC = 3;
-
     private static byte[] INFO_ERROR_GENERAL = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'I', 'N', 'F'};
     private static byte[] INFO_ERROR_TOOLKIT_1 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'I', 'N', 'F', '_', 'T', '1'};
     private static byte[] INFO_ERROR_1 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'I', 'N', 'F', '_', 'E', '1'};
-    private static byte[] INFO_ERROR_2 = new byte[]{'E', 'R', 'R', 'O', 'R', '_', 'I', 'N', 'F', '_', 'E', '2'};
 
     private DiagUtil diag;
 
@@ -67,15 +85,26 @@ public class UICCInfoProvider {
     public UICCInfoProvider(byte[] tmpBuffer, DiagUtil diag) {
         uiccFileView = UICCSystem.getTheUICCView(JCSystem.NOT_A_TRANSIENT_OBJECT);
 
-        readBuffer = JCSystem.makeTransientByteArray((short) 256, JCSystem.CLEAR_ON_RESET);
-        fullBuffer = JCSystem.makeTransientByteArray((short) 64, JCSystem.CLEAR_ON_RESET); // 64 bytes is enough
-        fieldOffsets = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_RESET);
-        fieldLengths = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_RESET);
+        fullBuffer = JCSystem.makeTransientByteArray(FieldRegistry.FULL_SIZE, JCSystem.CLEAR_ON_RESET);
+        fieldOffsets = new short[FieldRegistry.FIELD_COUNT];
+        fieldLengths = JCSystem.makeTransientShortArray(FieldRegistry.FIELD_COUNT, JCSystem.CLEAR_ON_RESET);
+        rawBuffer = JCSystem.makeTransientByteArray(FieldRegistry.RAW_SIZE, JCSystem.CLEAR_ON_RESET);
+        rawOffsets = new short[FieldRegistry.SOURCE_COUNT];
+        rawLengths = JCSystem.makeTransientShortArray(FieldRegistry.SOURCE_COUNT, JCSystem.CLEAR_ON_RESET);
+        rawCache = new byte[FieldRegistry.RAW_SIZE];
+        cacheLengths = new short[FieldRegistry.SOURCE_COUNT];
+        rawLoaded = new boolean[FieldRegistry.SOURCE_COUNT];
+        restored = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        decoded = JCSystem.makeTransientBooleanArray(FieldRegistry.SOURCE_COUNT, JCSystem.CLEAR_ON_RESET);
+        rawAges = JCSystem.makeTransientShortArray(FieldRegistry.SOURCE_COUNT, JCSystem.CLEAR_ON_RESET);
         this.tmpBuffer = tmpBuffer;
 
-        localInfoLoaded = false;
-        imeiLoaded = false;
-        iccidLoaded = false;
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            rawOffsets[source] = FieldRegistry.getRawOffset(source);
+        }
+        for (short field = 0; field < FieldRegistry.FIELD_COUNT; field++) {
+            fieldOffsets[field] = FieldRegistry.getFullOffset(field);
+        }
 
         this.diag = diag;
     }
@@ -104,237 +133,366 @@ public class UICCInfoProvider {
         return fieldLengths;
     }
 
-    private void ensureAllDataLoaded() throws UserException {
-        if (!iccidLoaded) {
-            iccidLength = extractICCID(true);
-            iccidLoaded = true;
-        }
-        if (!imeiLoaded) {
-            fetchDeviceImei();
-            imeiLoaded = true;
-        }
-        if (!localInfoLoaded) {
-            retrieveNetworkIdentifiers();
-            localInfoLoaded = true;
-        }
+    /**
+     * Returns the buffer containing all raw sources, without text expansion.
+     */
+    public byte[] getRawBuffer() throws UserException {
+        ensureRawDataLoaded();
+        return rawBuffer;
     }
 
     /**
-     * Returns the ICCID buffer.
-     * If not loaded yet, loads the ICCID from the UICC.
+     * Returns the array of raw source offsets.
      */
-    public byte[] getIccidBuffer() {
-        if (!iccidLoaded) {
-            iccidLength = extractICCID(true);
-            iccidLoaded = true;
-        }
+    public short[] getRawOffsets() throws UserException {
+        ensureRawDataLoaded();
+        return rawOffsets;
+    }
 
-        if (iccidCopyBuffer == null) {
-            short offset = fieldOffsets[INDEX_ICCID];
-            short length = fieldLengths[INDEX_ICCID];
-            iccidCopyBuffer = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_RESET);
-            Util.arrayCopyNonAtomic(fullBuffer, offset, iccidCopyBuffer, (short) 0, length);
-        }
+    /**
+     * Returns the array of raw source lengths.
+     */
+    public short[] getRawLengths() throws UserException {
+        ensureRawDataLoaded();
+        return rawLengths;
+    }
 
-        return iccidCopyBuffer;
+    /**
+     * Copies one decoded field.
+     *
+     * @param field Field index (FieldRegistry.FIELD_*)
+     * @param outBuffer Output buffer
+     * @param outOffset Offset in the output buffer
+     * @return New offset after writing
+     */
+    public short copyField(short field, byte[] outBuffer, short outOffset) throws UserException {
+        loadSource(FieldRegistry.fieldSources[field]);
+        return Util.arrayCopyNonAtomic(fullBuffer, fieldOffsets[field], outBuffer, outOffset, fieldLengths[field]);
+    }
 
+    private void ensureRawDataLoaded() throws UserException {
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            loadRawSource(source);
+        }
+    }
+
+    private void ensureAllDataLoaded() throws UserException {
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            loadSource(source);
+        }
     }
 
     /**
-     * Returns the length of the ICCID.
-     * Ensures the ICCID is loaded before returning its length.
+     * Starts the collection of a report: sources with a TTL age by one report, and are
+     * read again once they have been used for TTL reports.
      */
-    public short getIccidLength() {
-        if (!iccidLoaded) {
-            iccidLength = extractICCID(true);
-            iccidLoaded = true;
+    public void beginCollection() {
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            short age = rawAges[source];
+            if (FieldRegistry.sourceTtls[source] != FieldRegistry.TTL_UNTIL_EVENT
+                    && age != 0 && age <= FieldRegistry.sourceTtls[source]) {
+                rawAges[source] = (short) (age + 1);
+            }
         }
-        return iccidLength;
-
     }
 
     /**
-     * Returns the IMEI buffer.
-     * If not loaded yet, retrieves the IMEI from the device.
+     * Updates the sources of an event. A source of local information found in the
+     * envelope is updated from it, and its fields are decoded again only if it changed.
+     * Any other source of the event is invalidated, except an optional source missing
+     * from the envelope (e.g. no location without service), which keeps its last value.
+     *
+     * @param event Toolkit event
+     * @param eh Envelope of the event, or null if it carries no value
+     * @return True if a source has been invalidated and should be read again
      */
-    public byte[] getImeiBuffer() throws UserException {
-        if (!imeiLoaded) {
-            fetchDeviceImei();
-            imeiLoaded = true;
+    public boolean processEvent(short event, EnvelopeHandler eh) {
+        boolean invalidated = false;
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            if (FieldRegistry.sourceEvents[source] != event) {
+                continue;
+            }
+            if (eh != null && FieldRegistry.sourceTypes[source] == FieldRegistry.SOURCE_LOCAL_INFO) {
+                if (eh.findTLV(FieldRegistry.sourceTags[source], (byte) 0x01) != TLV_NOT_FOUND) {
+                    updateRawSource(source, eh);
+                } else if ((FieldRegistry.sourceFlags[source] & FieldRegistry.FLAG_OPTIONAL) == 0) {
+                    invalidate(source);
+                    invalidated = true;
+                }
+            } else {
+                invalidate(source);
+                invalidated = true;
+            }
         }
+        return invalidated;
+    }
 
-        if (imeiCopyBuffer == null) {
-            short offset = fieldOffsets[INDEX_IMEI];
-            short length = fieldLengths[INDEX_IMEI];
-            imeiCopyBuffer = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_RESET);
-            Util.arrayCopyNonAtomic(fullBuffer, offset, imeiCopyBuffer, (short) 0, length);
+    /**
+     * Loads the next source that is not cached yet, with at most one command, so that the
+     * sources can be prefetched over several events without blocking the terminal for long.
+     * A source that cannot be loaded ends the prefetch; it is loaded again when requested.
+     *
+     * @return True if further sources remain to be prefetched
+     */
+    public boolean prefetchNext() {
+        short source = findUncachedSource();
+        if (source == FieldRegistry.SOURCE_COUNT) {
+            return false;
+        }
+        try {
+            loadSource(source);
+        } catch (Exception ex) {
+            DiagUtil.text(INFO_ERROR_GENERAL);
+            return false;
         }
+        return findUncachedSource() != FieldRegistry.SOURCE_COUNT;
+    }
 
-        return imeiCopyBuffer;
+    /**
+     * Returns the first source that is not cached or not decoded, or SOURCE_COUNT if there
+     * is none. Sources with a TTL are skipped, as they are read for the report that uses them.
+     */
+    private short findUncachedSource() {
+        short source = 0;
+        while (source < FieldRegistry.SOURCE_COUNT
+                && (FieldRegistry.sourceTtls[source] != FieldRegistry.TTL_UNTIL_EVENT
+                || (isRawValid(source) && decoded[source]))) {
+            source++;
+        }
+        return source;
+    }
 
+    /**
+     * Invalidates a cached source.
+     */
+    private void invalidate(short source) {
+        rawLoaded[source] = false;
+        decoded[source] = false;
+        rawAges[source] = 0;
     }
 
     /**
-     * Returns the MCC (Mobile Country Code) buffer.
-     * If not loaded yet, loads local information.
+     * Returns true if the cached value of a source can be used.
      */
-    public byte[] getMccBuffer() {
-        if (!localInfoLoaded) {
-            retrieveNetworkIdentifiers();
-            localInfoLoaded = true;
+    private boolean isRawValid(short source) {
+        byte ttl = FieldRegistry.sourceTtls[source];
+        if (ttl == FieldRegistry.TTL_UNTIL_EVENT) {
+            return rawLoaded[source];
         }
+        short age = rawAges[source];
+        return age != 0 && age <= ttl;
+    }
 
-        if (mccCopyBuffer == null) {
-            short offset = fieldOffsets[INDEX_MCC];
-            short length = fieldLengths[INDEX_MCC];
-            mccCopyBuffer = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_RESET);
-            Util.arrayCopyNonAtomic(fullBuffer, offset, mccCopyBuffer, (short) 0, length);
+    /**
+     * Marks a source as read. Only sources cached until their event are copied and
+     * flagged in EEPROM, the age of the others is transient.
+     */
+    private void setRawLoaded(short source) {
+        if (FieldRegistry.sourceTtls[source] == FieldRegistry.TTL_UNTIL_EVENT) {
+            short offset = rawOffsets[source];
+            Util.arrayCopy(rawBuffer, offset, rawCache, offset, rawLengths[source]);
+            cacheLengths[source] = rawLengths[source];
+            rawLoaded[source] = true;
+        } else {
+            rawAges[source] = 1;
         }
-
-        return mccCopyBuffer;
     }
 
     /**
-     * Returns the MNC (Mobile Network Code) buffer.
-     * If not loaded yet, loads local information.
+     * Restores the sources cached until their event from EEPROM, once after a reset.
      */
-    public byte[] getMncBuffer() {
-        if (!localInfoLoaded) {
-            retrieveNetworkIdentifiers();
-            localInfoLoaded = true;
+    private void restore() {
+        if (restored[0]) {
+            return;
+        }
+        Util.arrayCopyNonAtomic(rawCache, (short) 0, rawBuffer, (short) 0, FieldRegistry.RAW_SIZE);
+        for (short source = 0; source < FieldRegistry.SOURCE_COUNT; source++) {
+            rawLengths[source] = cacheLengths[source];
         }
+        restored[0] = true;
+    }
 
-        if (mncCopyBuffer == null) {
-            short offset = fieldOffsets[INDEX_MNC];
-            short length = fieldLengths[INDEX_MNC];
-            mncCopyBuffer = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_RESET);
-            Util.arrayCopyNonAtomic(fullBuffer, offset, mncCopyBuffer, (short) 0, length);
+    /**
+     * Returns true if a source is defined on the current access technology. A source
+     * restricted to some access technologies is not requested while it is unknown.
+     */
+    private boolean isAvailable(short source) throws UserException {
+        short accessTechnologies = FieldRegistry.sourceAccessTechnologies[source];
+        if (accessTechnologies == FieldRegistry.ALL_ACCESS_TECHNOLOGIES) {
+            return true;
         }
+        loadRawSource(FieldRegistry.SOURCE_ACCESS_TECHNOLOGY);
+        return FieldRegistry.includes(accessTechnologies, getAccessTechnology());
+    }
 
-        return mncCopyBuffer;
+    /**
+     * Returns the cached access technology, or -1 if it is unknown.
+     */
+    private short getAccessTechnology() {
+        if (rawLengths[FieldRegistry.SOURCE_ACCESS_TECHNOLOGY] == 0) {
+            return -1;
+        }
+        return (short) (rawBuffer[rawOffsets[FieldRegistry.SOURCE_ACCESS_TECHNOLOGY]] & 0xFF);
     }
 
     /**
-     * Loads local information from the device (MCC and MNC).
+     * Loads a source if needed and decodes its fields.
      */
-    private void retrieveNetworkIdentifiers() {
+    private void loadSource(short source) throws UserException {
+        loadRawSource(source);
+        if (!decoded[source]) {
+            for (short field = 0; field < FieldRegistry.FIELD_COUNT; field++) {
+                if (FieldRegistry.fieldSources[field] == source) {
+                    fieldLengths[field] = decodeField(field);
+                }
+            }
+            decoded[source] = true;
+        }
+    }
 
+    /**
+     * Reads a source in its raw encoding with one command, unless its cached value can be used.
+     */
+    private void loadRawSource(short source) throws UserException {
+        restore();
+        if (isRawValid(source)) {
+            return;
+        }
+        decoded[source] = false;
+        if (!isAvailable(source)) {
+            rawLengths[source] = 0;
+            setRawLoaded(source);
+            return;
+        }
+        short offset = rawOffsets[source];
+        short maxLength = FieldRegistry.sourceLengths[source];
+        short length = 0;
         try {
-            // Prepare and send the proactive command to get local info
-            ProactiveHandler handler = ProactiveHandlerSystem.getTheHandler();
-            handler.init(PRO_CMD_PROVIDE_LOCAL_INFORMATION, (byte) 0x00, DEV_ID_TERMINAL);
-            handler.send();
-
-            // Handle the response and extract location data if available
-            ProactiveResponseHandler response = ProactiveResponseHandlerSystem.getTheHandler();
-            if (response.findTLV((byte) TAG_LOCATION_INFORMATION, (byte) 0x01) != TLV_NOT_FOUND) {
-                short dataLength = response.copyValue((short) 0, readBuffer, (short) 0, (short) 8);
-
-                ByteUtil.nibbleSwap(readBuffer, (short) 0, dataLength);
-                ByteUtil.bytesToHex(readBuffer, (short) 0, dataLength, tmpBuffer, (short) 0);
-
-                short currentOffset = (short) (fieldOffsets[INDEX_MNC - 1] + fieldLengths[INDEX_MNC - 1]);
-                fieldOffsets[INDEX_MCC] = currentOffset;
-                fieldLengths[INDEX_MCC] = 3;
-                Util.arrayCopyNonAtomic(tmpBuffer, (short) 0, fullBuffer, currentOffset, (short) 3);
-
-                currentOffset += 3;
-                fieldOffsets[INDEX_MNC] = currentOffset;
-                fieldLengths[INDEX_MNC] = 2;
-                Util.arrayCopyNonAtomic(tmpBuffer, (short) 4, fullBuffer, currentOffset, (short) 2);
+            if (FieldRegistry.sourceTypes[source] == FieldRegistry.SOURCE_EF) {
+                uiccFileView.select(FieldRegistry.sourceParams[source]);
+                length = (short) (uiccFileView.readBinary((short) 0, rawBuffer, offset, maxLength) - offset);
+            } else {
+                ProactiveHandler handler = ProactiveHandlerSystem.getTheHandler();
+                handler.init(PRO_CMD_PROVIDE_LOCAL_INFORMATION, (byte) FieldRegistry.sourceParams[source], DEV_ID_TERMINAL);
+                if ((FieldRegistry.sourceFlags[source] & FieldRegistry.FLAG_MEASUREMENT) != 0) {
+                    byte qualifier = FieldRegistry.getMeasurementQualifier(getAccessTechnology());
+                    if (qualifier != 0) {
+                        handler.appendTLV(FieldRegistry.TAG_MEASUREMENT_QUALIFIER, qualifier);
+                    }
+                }
+                byte result = handler.send();
+
+                // An optional source is left empty if the terminal has no value
+                ProactiveResponseHandler response = ProactiveResponseHandlerSystem.getTheHandler();
+                boolean optional = (FieldRegistry.sourceFlags[source] & FieldRegistry.FLAG_OPTIONAL) != 0;
+                if ((result == RES_CMD_PERF || optional)
+                        && response.findTLV(FieldRegistry.sourceTags[source], (byte) 0x01) != TLV_NOT_FOUND) {
+                    length = response.getValueLength();
+                    if (length > maxLength) {
+                        length = maxLength;
+                    }
+                    response.copyValue((short) 0, rawBuffer, offset, length);
+                } else if (!optional) {
+                    // Raise custom exception if the command failed
+                    UserException.throwIt((short) 0x7001);
+                }
             }
-
         } catch (ToolkitException ex) {
             diag.error(INFO_ERROR_TOOLKIT_1, ex.getReason());
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            DiagUtil.text(INFO_ERROR_1);
-        } catch (NullPointerException ex) {
-            DiagUtil.text(INFO_ERROR_2);
-        } catch (Exception ex) {
-            DiagUtil.text(INFO_ERROR_GENERAL);
+            UserException.throwIt((short) 0x7001);
+        } catch (UICCException ex) {
+            diag.error(INFO_ERROR_1, ex.getReason());
+            UserException.throwIt((short) 0x7001);
         }
+        rawLengths[source] = length;
+        setRawLoaded(source);
     }
 
     /**
-     * Loads the IMEI from the device and stores it in the buffer.
+     * Updates a source from the TLV found in an envelope.
      */
-    private void fetchDeviceImei() throws ToolkitException, UserException {
-        // Initialize handlers for proactive command and response
-        ProactiveHandler cmdHandler = ProactiveHandlerSystem.getTheHandler();
-        ProactiveResponseHandler respHandler = ProactiveResponseHandlerSystem.getTheHandler();
-
-        // Request IMEI from the terminal
-        cmdHandler.init(PRO_CMD_PROVIDE_LOCAL_INFORMATION, (byte) 0x01, DEV_ID_TERMINAL);
-        cmdHandler.send();
-
-        // Check if the command was successfully executed
-        if (respHandler.getGeneralResult() == RES_CMD_PERF) {
-            short imeiLength = respHandler.findAndCopyValue(TAG_IMEI, readBuffer, (short) 0);
-
-            // Convert IMEI format and calculate check digit
-            ByteUtil.nibbleSwap(readBuffer, (short) 0, imeiLength);
-            ByteUtil.bytesToHex(readBuffer, (short) 0, imeiLength, tmpBuffer, (short) 0);
-            short check = ByteUtil.calcCheckDigitByLuhn(tmpBuffer, (short) 1, (short) 14);
-            tmpBuffer[15] = (byte) (check + '0');
-
-            // Store result in the final buffer
-            short destOffset = (short) (fieldOffsets[INDEX_ICCID] + fieldLengths[INDEX_ICCID]);
-            fieldOffsets[INDEX_IMEI] = destOffset;
-            fieldLengths[INDEX_IMEI] = 15;
-            Util.arrayCopyNonAtomic(tmpBuffer, (short) 1, fullBuffer, destOffset, (short) 15);
-        } else {
-            // Raise custom exception if the command failed
-            UserException.throwIt((short) 0x7001);
+    private void updateRawSource(short source, EnvelopeHandler eh) {
+        restore();
+        short offset = rawOffsets[source];
+        short length = eh.getValueLength();
+        if (length > FieldRegistry.sourceLengths[source]) {
+            length = FieldRegistry.sourceLengths[source];
+        }
+        eh.copyValue((short) 0, tmpBuffer, (short) 0, length);
+        if (isRawValid(source) && rawLengths[source] == length
+                && Util.arrayCompare(tmpBuffer, (short) 0, rawBuffer, offset, length) == 0) {
+            return;
         }
+        invalidate(source);
+        Util.arrayCopyNonAtomic(tmpBuffer, (short) 0, rawBuffer, offset, length);
+        rawLengths[source] = length;
+        setRawLoaded(source);
     }
 
     /**
-     * Loads the ICCID from the UICC filesystem.
+     * Decodes a field from its source into the final buffer.
      *
-     * @param trimTrailingF True to remove 'F' padding at the end
-     * @return Length of the valid ICCID digits
+     * @return Length of the decoded field, 0 if the source is empty or encoded for
+     *         another access technology
      */
-    private short extractICCID(boolean trimTrailingF) throws ToolkitException {
-        try {
-            short rawLength = 10;
-            short charCount = 20;
-
-            // Read ICCID data from the SIM file system
-            readBinaryFromEF(uiccFileView, UICCConstants.FID_EF_ICCID, readBuffer, (short) 0, rawLength);
-            ByteUtil.nibbleSwap(readBuffer, (short) 0, rawLength);
-            ByteUtil.bytesToHex(readBuffer, (short) 0, rawLength, tmpBuffer, (short) 0);
-
-            // Optionally strip padding characters from the end
-            if (trimTrailingF) {
-                while (tmpBuffer[(short)(charCount - 1)] == (byte) 'F') {
-                    charCount--;
+    private short decodeField(short field) {
+        if (!FieldRegistry.includes(FieldRegistry.fieldAccessTechnologies[field], getAccessTechnology())) {
+            return 0;
+        }
+        short source = FieldRegistry.fieldSources[field];
+        short rawOffset = rawOffsets[source];
+        short rawLength = rawLengths[source];
+        short first = FieldRegistry.fieldFirsts[field];
+        short maxLength = FieldRegistry.fieldLengths[field];
+        short destOffset = fieldOffsets[field];
+        byte decoder = FieldRegistry.fieldDecoders[field];
+
+        if (decoder == FieldRegistry.DECODER_HEX) {
+            short bytes = (short) (rawLength - first);
+            if (bytes > (short) (maxLength / 2)) {
+                bytes = (short) (maxLength / 2);
+            }
+            if (bytes <= 0) {
+                return 0;
+            }
+            return (short) (ByteUtil.bytesToHex(rawBuffer, (short) (rawOffset + first), bytes, fullBuffer, destOffset) - destOffset);
+        }
+        if (decoder == FieldRegistry.DECODER_DECIMAL || decoder == FieldRegistry.DECODER_BIT_FIELD) {
+            short value;
+            if (decoder == FieldRegistry.DECODER_BIT_FIELD) {
+                if ((short) ((short) (first >> 3) + 2) > rawLength) {
+                    return 0;
+                }
+                value = ByteUtil.getBits(rawBuffer, rawOffset, first, FieldRegistry.fieldBitMasks[field]);
+            } else {
+                if (first >= rawLength) {
+                    return 0;
                 }
+                value = (short) (rawBuffer[(short) (rawOffset + first)] & FieldRegistry.fieldBitMasks[field] & 0xFF);
             }
+            if (value == 0) {
+                fullBuffer[destOffset] = '0';
+                return 1;
+            }
+            return (short) (ByteUtil.numToCharArray(value, fullBuffer, destOffset) - destOffset);
+        }
 
-            // Store ICCID info in buffer structure
-            fieldOffsets[INDEX_ICCID] = 0;
-            fieldLengths[INDEX_ICCID] = charCount;
-            Util.arrayCopyNonAtomic(tmpBuffer, (short) 0, fullBuffer, (short) 0, charCount);
-
-            return charCount;
-        } catch (Exception ex) {
+        // Swapped BCD digits, without the check digit computed for the IMEI
+        short digits = decoder == FieldRegistry.DECODER_BCD_LUHN ? (short) (maxLength - 1) : maxLength;
+        short available = (short) ((short) (rawLength * 2) - first);
+        if (available <= 0) {
             return 0;
         }
-
-    }
-
-    /**
-     * Reads a binary file (EF) from the UICC.
-     *
-     * @param fileView   FileView instance to access files
-     * @param FID        File Identifier (FID) of the EF
-     * @param dstBuffer  Buffer to store the file contents
-     * @param dstOffset  Offset where to start writing
-     * @param readLength Number of bytes to read
-     * @return Number of bytes read
-     */
-    private short readBinaryFromEF(FileView fileView, short FID, byte[] dstBuffer, short dstOffset, short readLength) {
-        fileView.select(FID);
-        return fileView.readBinary((short) 0, dstBuffer, (short) dstOffset, readLength);
+        if (digits > available) {
+            digits = available;
+        }
+        short length = ByteUtil.swappedBcdToAscii(rawBuffer, rawOffset, first, digits, fullBuffer, destOffset,
+                (byte) 0, decoder == FieldRegistry.DECODER_BCD_TRIM_F);
+        if (decoder == FieldRegistry.DECODER_BCD_LUHN) {
+            short check = ByteUtil.calcCheckDigitByLuhn(fullBuffer, destOffset, length);
+            fullBuffer[(short) (destOffset + length)] = (byte) (check + '0');
+            length++;
+        }
+        return length;
     }
 }
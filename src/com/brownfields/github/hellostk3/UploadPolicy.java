@@ -0,0 +1,80 @@
+package com.brownfields.github.hellostk3;
+
+/**
+ * UploadPolicy class
+ * <p>
+ * Decides whether an upload is deferred because of poor radio conditions, from the
+ * access technology and network measurement results of the report sources.
+ * <p>
+ * An upload at the cell edge costs retransmissions and seconds of radio-on time, so
+ * non-urgent reports are queued while the serving cell is weak, and sent once the
+ * conditions are good again. The queue is never allowed to overflow because of it.
+ * <p>
+ * The measurement results of PROVIDE LOCAL INFORMATION are requested on GERAN and
+ * E-UTRAN, so the signal level is compared with a threshold per access technology:
+ * the RXLEV of the serving cell on GERAN, and the RSRP of the PCell on E-UTRAN. On
+ * other access technologies, or when the measurement is missing or not valid,
+ * uploads are never deferred.
+ */
+public class UploadPolicy {
+
+    // GERAN measurement results (3GPP TS 44.018 Clause 10.5.2.20): RXLEV-FULL-SERVING-CELL
+    // in the first byte, and MEAS-VALID in the second byte (set if not valid)
+    private static final byte RXLEV_MASK = 0x3F;
+    private static final byte MEAS_NOT_VALID = 0x40;
+
+    // E-UTRAN measResults (3GPP TS 36.331, unaligned PER): RSRP-Range of the PCell in
+    // 7 bits after the extension bit, the presence bit of measResultNeighCells and measId
+    private static final short RSRP_FIRST_BIT = 7;
+    private static final short RSRP_BITS = 7;
+
+    private final short minRxlev;
+    private final short minRsrp;
+    private final short minFreeSlots;
+
+    /**
+     * Constructor
+     *
+     * @param minRxlev Lowest RXLEV (0 to 63, i.e. -110 to -48 dBm) at which uploads are sent on GERAN
+     * @param minRsrp Lowest RSRP-Range (0 to 97, i.e. -140 to -44 dBm) at which uploads are sent on E-UTRAN
+     * @param minFreeSlots Free queue slots below which uploads are sent whatever the conditions
+     */
+    public UploadPolicy(short minRxlev, short minRsrp, short minFreeSlots) {
+        this.minRxlev = minRxlev;
+        this.minRsrp = minRsrp;
+        this.minFreeSlots = minFreeSlots;
+    }
+
+    /**
+     * Returns true if a non-urgent upload should be deferred.
+     *
+     * @param rawBuffer Buffer containing the raw sources (FieldRegistry layout)
+     * @param rawOffsets Offsets of the raw sources
+     * @param rawLengths Lengths of the raw sources
+     * @param queued Number of queued reports, including the one to upload
+     * @param capacity Capacity of the queue
+     * @return True if the radio conditions are poor and the queue can hold the report
+     */
+    public boolean shouldDefer(byte[] rawBuffer, short[] rawOffsets, short[] rawLengths,
+                               short queued, short capacity) {
+        if ((short) (capacity - queued) < minFreeSlots) {
+            return false;
+        }
+
+        // The signal level is only known on GERAN and E-UTRAN
+        if (rawLengths[FieldRegistry.SOURCE_ACCESS_TECHNOLOGY] == 0
+                || rawLengths[FieldRegistry.SOURCE_NMR] < 2) {
+            return false;
+        }
+        byte accessTechnology = rawBuffer[rawOffsets[FieldRegistry.SOURCE_ACCESS_TECHNOLOGY]];
+        short offset = rawOffsets[FieldRegistry.SOURCE_NMR];
+        if (accessTechnology == FieldRegistry.ACCESS_TECHNOLOGY_E_UTRAN) {
+            return ByteUtil.getBits(rawBuffer, offset, RSRP_FIRST_BIT, RSRP_BITS) < minRsrp;
+        }
+        if (accessTechnology != FieldRegistry.ACCESS_TECHNOLOGY_GSM
+                || (rawBuffer[(short) (offset + 1)] & MEAS_NOT_VALID) != 0) {
+            return false;
+        }
+        return (short) (rawBuffer[offset] & RXLEV_MASK) < minRxlev;
+    }
+}